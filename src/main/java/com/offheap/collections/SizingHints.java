@@ -0,0 +1,99 @@
+package com.offheap.collections;
+
+import com.offheap.serialization.Serializer;
+import com.offheap.storage.OffHeapStorage;
+
+import java.util.Collection;
+
+/**
+ * What a collection should expect to hold, used to size its storage and index up front instead
+ * of guessing 1 KB per element. Sizes are serialized bytes; {@link #sample} measures them with
+ * {@link Serializer#estimatedSize}.
+ */
+public final class SizingHints {
+    private final int expectedEntries;
+    private final long averageKeyBytes;
+    private final long averageValueBytes;
+    private final double growthFactor;
+
+    private SizingHints(int expectedEntries, long averageKeyBytes, long averageValueBytes, double growthFactor) {
+        if (expectedEntries < 0 || averageKeyBytes < 0 || averageValueBytes < 0) {
+            throw new IllegalArgumentException("Sizing hints must not be negative");
+        }
+        if (growthFactor <= 1) {
+            throw new IllegalArgumentException("Growth factor must be greater than 1: " + growthFactor);
+        }
+        this.expectedEntries = expectedEntries;
+        this.averageKeyBytes = averageKeyBytes;
+        this.averageValueBytes = averageValueBytes;
+        this.growthFactor = growthFactor;
+    }
+
+    /**
+     * Hints for a map. A list or set ignores the value size and uses the key size for its elements.
+     */
+    public static SizingHints of(int expectedEntries, long averageKeyBytes, long averageValueBytes) {
+        return new SizingHints(expectedEntries, averageKeyBytes, averageValueBytes, OffHeapStorage.DEFAULT_GROWTH_FACTOR);
+    }
+
+    /**
+     * Hints for a list or set of elements averaging {@code averageElementBytes}.
+     */
+    public static SizingHints of(int expectedEntries, long averageElementBytes) {
+        return of(expectedEntries, averageElementBytes, 0);
+    }
+
+    /**
+     * Hints for a map whose average key and value sizes are measured on representative samples.
+     */
+    public static <K, V> SizingHints sample(int expectedEntries, Serializer<K> keySerializer, Collection<? extends K> keys,
+                                            Serializer<V> valueSerializer, Collection<? extends V> values) {
+        return of(expectedEntries, averageSize(keySerializer, keys), averageSize(valueSerializer, values));
+    }
+
+    /**
+     * Hints for a list or set whose average element size is measured on representative samples.
+     */
+    public static <E> SizingHints sample(int expectedEntries, Serializer<E> serializer, Collection<? extends E> elements) {
+        return of(expectedEntries, averageSize(serializer, elements));
+    }
+
+    private static <T> long averageSize(Serializer<T> serializer, Collection<? extends T> samples) {
+        if (samples.isEmpty()) {
+            throw new IllegalArgumentException("Need at least one sample");
+        }
+        long total = 0;
+        for (T sample : samples) {
+            total += serializer.estimatedSize(sample);
+        }
+        return (total + samples.size() - 1) / samples.size();
+    }
+
+    /**
+     * Grows storage by {@code growthFactor} times its size when the hints turn out too small.
+     * Accurate hints can afford a small factor; the default doubles.
+     */
+    public SizingHints withGrowthFactor(double growthFactor) {
+        return new SizingHints(expectedEntries, averageKeyBytes, averageValueBytes, growthFactor);
+    }
+
+    public SizingHints withAverageValueBytes(long averageValueBytes) {
+        return new SizingHints(expectedEntries, averageKeyBytes, averageValueBytes, growthFactor);
+    }
+
+    public int getExpectedEntries() {
+        return expectedEntries;
+    }
+
+    public long getAverageKeyBytes() {
+        return averageKeyBytes;
+    }
+
+    public long getAverageValueBytes() {
+        return averageValueBytes;
+    }
+
+    public double getGrowthFactor() {
+        return growthFactor;
+    }
+}
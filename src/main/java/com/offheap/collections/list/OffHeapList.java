@@ -1,9 +1,16 @@
 package com.offheap.collections.list;
 
+import com.offheap.collections.SizingHints;
 import com.offheap.serialization.Serializer;
+import com.offheap.storage.ChannelIO;
+import com.offheap.storage.OffHeapResources;
 import com.offheap.storage.OffHeapStorage;
+import java.io.IOException;
 import java.lang.ref.Cleaner;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.AbstractList;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
@@ -21,28 +28,50 @@ public class OffHeapList<E> extends AbstractList<E> implements AutoCloseable {
     private int size = 0;
     private long dataOffset = 0;
     private int capacity;
-    private final Cleaner cleaner = Cleaner.create();
     private final Cleaner.Cleanable cleanable;
     private final boolean threadSafe;
+    private final double growthFactor;
     private long operationCount = 0;
     private long totalLatencyNanos = 0;
+    private int writeDepth;
 
+    // Snapshot file: magic, size, data length, element offsets, then the raw element bytes
+    private static final long SNAPSHOT_MAGIC = 0x4F484C534E503031L; // "OHLSNP01"
+    private static final int SNAPSHOT_HEADER_SIZE = 8 + 4 + 8;
+    /** Storage reserved per element when no {@link SizingHints} are given. */
+    private static final long DEFAULT_BYTES_PER_ELEMENT = 1024;
+    private static final long MIN_INITIAL_BYTES = 4096;
+
+    /**
+     * Creates a list reserving 1 KB of storage per element of {@code initialCapacity}. Unless
+     * {@code threadSafe}, operations take no lock; the list can still be handed to another thread.
+     */
     public OffHeapList(OffHeapStorage storage, Serializer<E> serializer, int initialCapacity, boolean threadSafe) {
+        this(storage, serializer, initialCapacity, DEFAULT_BYTES_PER_ELEMENT * initialCapacity,
+                OffHeapStorage.DEFAULT_GROWTH_FACTOR, threadSafe);
+    }
+
+    /**
+     * Creates a list with room for the expected number of elements of the average size given by
+     * {@code hints}.
+     */
+    public OffHeapList(OffHeapStorage storage, Serializer<E> serializer, SizingHints hints, boolean threadSafe) {
+        this(storage, serializer, Math.max(1, hints.getExpectedEntries()),
+                Math.max(MIN_INITIAL_BYTES, hints.getExpectedEntries() * hints.getAverageKeyBytes()),
+                hints.getGrowthFactor(), threadSafe);
+    }
+
+    private OffHeapList(OffHeapStorage storage, Serializer<E> serializer, int initialCapacity, long initialBytes,
+                        double growthFactor, boolean threadSafe) {
         this.storage = storage;
         this.serializer = serializer;
         this.capacity = initialCapacity;
         this.offsets = new long[initialCapacity];
         this.threadSafe = threadSafe;
-        storage.allocate(1024L * initialCapacity); // Estimate 1KB per element
-        this.cleanable = cleaner.register(this, this::cleanup);
-    }
-
-    private void cleanup() {
-        try {
-            storage.close();
-        } catch (Exception e) {
-            // Log error in production
-        }
+        this.growthFactor = growthFactor;
+        OffHeapResources.nameOwner(storage, this);
+        storage.allocate(initialBytes);
+        this.cleanable = OffHeapResources.register(this, storage);
     }
 
     private <T> T sync(java.util.function.Supplier<T> action) {
@@ -54,6 +83,23 @@ public class OffHeapList<E> extends AbstractList<E> implements AutoCloseable {
         return action.get();
     }
 
+    /**
+     * Runs a mutation, committed to the storage as one write however many nested mutations it
+     * makes.
+     */
+    private <T> T write(java.util.function.Supplier<T> action) {
+        return sync(() -> {
+            writeDepth++;
+            try {
+                return action.get();
+            } finally {
+                if (--writeDepth == 0) {
+                    storage.commit();
+                }
+            }
+        });
+    }
+
     private void ensureCapacity(int minCapacity) {
         if (minCapacity > capacity) {
             int newCapacity = capacity * 2;
@@ -68,32 +114,25 @@ public class OffHeapList<E> extends AbstractList<E> implements AutoCloseable {
     private void ensureStorage(long additionalBytes) {
         long needed = dataOffset + additionalBytes;
         if (needed > storage.getMemoryUsage()) {
-            long newSize = storage.getMemoryUsage() * 2;
-            if (newSize < needed) newSize = needed;
-            storage.resize(newSize);
+            storage.resize(storage.nextCapacity(needed, growthFactor));
         }
     }
 
     @Override
     public void add(int index, E element) {
-        sync(() -> {
+        write(() -> {
             long start = System.nanoTime();
             Objects.checkIndex(index, size + 1);
             ensureCapacity(size + 1);
             byte[] data = serializer.serialize(element);
             ensureStorage(data.length);
 
-            ByteBuffer buffer = storage.asByteBuffer();
             long insertOffset = (index == size) ? dataOffset : offsets[index];
 
             if (index < size) {
                 long tailStart = offsets[index];
                 long tailSize = dataOffset - tailStart;
-                buffer.position((int) tailStart);
-                byte[] tail = new byte[(int) tailSize];
-                buffer.get(tail);
-                buffer.position((int) (tailStart + data.length));
-                buffer.put(tail);
+                storage.copy(tailStart, tailStart + data.length, tailSize);
 
                 System.arraycopy(offsets, index, offsets, index + 1, size - index);
 
@@ -102,7 +141,7 @@ public class OffHeapList<E> extends AbstractList<E> implements AutoCloseable {
                 }
             }
 
-            buffer.position((int) insertOffset).put(data);
+            storage.putBytes(insertOffset, data);
             offsets[index] = insertOffset;
             dataOffset += data.length;
             size++;
@@ -114,22 +153,17 @@ public class OffHeapList<E> extends AbstractList<E> implements AutoCloseable {
 
     @Override
     public E remove(int index) {
-        return sync(() -> {
+        return write(() -> {
             long start = System.nanoTime();
             E old = get(index);
             long startOffset = offsets[index];
             long endOffset = (index + 1 < size) ? offsets[index + 1] : dataOffset;
             long removeSize = endOffset - startOffset;
 
-            ByteBuffer buffer = storage.asByteBuffer();
             if (index + 1 < size) {
                 long tailStart = endOffset;
                 long tailSize = dataOffset - tailStart;
-                buffer.position((int) tailStart);
-                byte[] tail = new byte[(int) tailSize];
-                buffer.get(tail);
-                buffer.position((int) startOffset);
-                buffer.put(tail);
+                storage.copy(tailStart, startOffset, tailSize);
             }
 
             System.arraycopy(offsets, index + 1, offsets, index, size - index - 1);
@@ -160,7 +194,7 @@ public class OffHeapList<E> extends AbstractList<E> implements AutoCloseable {
             long endOffset = (index + 1 < size) ? offsets[index + 1] : dataOffset;
             int length = (int) (endOffset - startOffset);
             byte[] data = new byte[length];
-            storage.asByteBuffer().position((int) startOffset).get(data);
+            storage.getBytes(startOffset, data);
             E result = serializer.deserialize(data);
             totalLatencyNanos += System.nanoTime() - start;
             operationCount++;
@@ -170,7 +204,7 @@ public class OffHeapList<E> extends AbstractList<E> implements AutoCloseable {
 
     @Override
     public E set(int index, E element) {
-        return sync(() -> {
+        return write(() -> {
             long start = System.nanoTime();
             E old = get(index);
             remove(index);
@@ -181,35 +215,6 @@ public class OffHeapList<E> extends AbstractList<E> implements AutoCloseable {
         });
     }
 
-//    @Override
-//    public E remove1(int index) {
-//        return sync(() -> {
-//            long start = System.nanoTime();
-//            E old = get(index);
-//            long startOffset = offsets[index];
-//            long endOffset = (index + 1 < size) ? offsets[index + 1] : dataOffset;
-//            long removeSize = endOffset - startOffset;
-//
-//            ByteBuffer buffer = storage.asByteBuffer();
-//            if (index + 1 < size) {
-//                long tailStart = endOffset;
-//                long tailSize = dataOffset - tailStart;
-//                buffer.position((int) tailStart);
-//                byte[] tail = new byte[(int) tailSize];
-//                buffer.get(tail);
-//                buffer.position((int) startOffset);
-//                buffer.put(tail);
-//            }
-//
-//            System.arraycopy(offsets, index + 1, offsets, index, size - index - 1);
-//            size--;
-//            dataOffset -= removeSize;
-//            totalLatencyNanos += System.nanoTime() - start;
-//            operationCount++;
-//            return old;
-//        });
-//    }
-
     @Override
     public int size() {
         return size;
@@ -238,6 +243,55 @@ public class OffHeapList<E> extends AbstractList<E> implements AutoCloseable {
         return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator(), Spliterator.DISTINCT | Spliterator.ORDERED), false);
     }
 
+    /**
+     * Writes the list to {@code path} as its element offsets followed by the raw element bytes,
+     * without deserializing anything.
+     */
+    public void snapshotTo(Path path) {
+        sync(() -> {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer header = ByteBuffer.allocate(SNAPSHOT_HEADER_SIZE);
+                header.putLong(SNAPSHOT_MAGIC).putInt(size).putLong(dataOffset);
+                ChannelIO.writeFully(channel, header.flip());
+                ChannelIO.writeLongs(channel, size, i -> offsets[i]);
+                storage.writeTo(channel, 0, dataOffset);
+            } catch (IOException e) {
+                throw new RuntimeException("Snapshot to " + path + " failed", e);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Replaces the contents of this list with a snapshot written by {@link #snapshotTo}.
+     */
+    public void restoreFrom(Path path) {
+        write(() -> {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                ByteBuffer header = ChannelIO.readFully(channel, SNAPSHOT_HEADER_SIZE);
+                if (header.getLong() != SNAPSHOT_MAGIC) {
+                    throw new IllegalStateException(path + " is not an OffHeapList snapshot");
+                }
+                int newSize = header.getInt();
+                long newDataOffset = header.getLong();
+                long[] newOffsets = new long[Math.max(capacity, newSize)];
+                ChannelIO.readLongs(channel, newOffsets, newSize);
+                if (storage.getMemoryUsage() < newDataOffset) {
+                    storage.resize(storage.nextCapacity(newDataOffset));
+                }
+                storage.readFrom(channel, 0, newDataOffset);
+                offsets = newOffsets;
+                capacity = newOffsets.length;
+                size = newSize;
+                dataOffset = newDataOffset;
+            } catch (IOException e) {
+                throw new RuntimeException("Restore from " + path + " failed", e);
+            }
+            return null;
+        });
+    }
+
     @Override
     public void close() {
         cleanable.clean();
@@ -250,4 +304,4 @@ public class OffHeapList<E> extends AbstractList<E> implements AutoCloseable {
     public long getMemoryUsage() {
         return storage.getMemoryUsage();
     }
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -0,0 +1,244 @@
+package com.offheap.collections.map;
+
+import com.offheap.storage.DirectMemoryStorage;
+import com.offheap.storage.OffHeapAllocator;
+import com.offheap.storage.OffHeapResources;
+import com.offheap.storage.OffHeapStorage;
+
+import java.io.IOException;
+import java.lang.ref.Cleaner;
+import java.nio.channels.FileChannel;
+
+/**
+ * Open-addressing index of an {@link OffHeapMap}: a power-of-two table of 8-byte slots probed
+ * linearly from the slot picked by the top bits of the mixed hash. A slot holds a 16-bit
+ * fingerprint of the hash and the entry offset, so a probe only dereferences entries whose
+ * fingerprint matches and a miss usually stays within one or two cache lines of the table.
+ * <p>
+ * The full hash of every slot is kept in a column of ints after the slots. Growing the index and
+ * removing from it need the home slot of each entry they move, and get it from the column
+ * without reading any entry.
+ * <p>
+ * The table lives off-heap: inside the map's storage for a persistent map, otherwise in a
+ * {@link DirectMemoryStorage} of its own that is freed when the index is closed or collected.
+ * Removal shifts later slots of the run back instead of leaving tombstones, so probe lengths do
+ * not degrade under churn.
+ */
+final class HashIndex {
+    static final int MIN_CAPACITY = 8;
+    static final long EMPTY = 0L;
+
+    private static final long OFFSET_MASK = (1L << 48) - 1;
+    private static final long MIX = 0x9E3779B97F4A7C15L;
+
+    private final OffHeapStorage storage;
+    private final long baseOffset;
+    private final int capacity;
+    private final int mask;
+    private final int shift;
+    private final Cleaner.Cleanable cleanable;  // null unless the index owns its storage
+
+    private HashIndex(OffHeapStorage storage, long baseOffset, int capacity, boolean ownsStorage) {
+        if (capacity < MIN_CAPACITY || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Index capacity must be a power of two of at least "
+                    + MIN_CAPACITY + ": " + capacity);
+        }
+        this.storage = storage;
+        this.baseOffset = baseOffset;
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.shift = 64 - Integer.numberOfTrailingZeros(capacity);
+        this.cleanable = ownsStorage ? OffHeapResources.register(this, storage) : null;
+    }
+
+    /**
+     * Smallest valid capacity of at least {@code slots}.
+     */
+    static int capacityFor(long slots) {
+        if (slots > 1 << 30) {
+            throw new IllegalArgumentException("Index too large: " + slots + " slots");
+        }
+        return Math.max(MIN_CAPACITY, Integer.highestOneBit((int) Math.max(1, slots - 1)) << 1);
+    }
+
+    /**
+     * Bytes taken by an index of {@code capacity} slots, including the hash column.
+     */
+    static long bytesFor(int capacity) {
+        return 12L * capacity;
+    }
+
+    /**
+     * An empty index in a direct memory storage of its own, closed with {@link #close()}. The
+     * storage is reported as the index of {@code owner} if that is not null. Fresh and pooled
+     * segments both come zeroed and {@link #EMPTY} is 0, so the slots need no clearing.
+     */
+    static HashIndex standalone(int capacity, String owner) {
+        DirectMemoryStorage storage = new DirectMemoryStorage();
+        if (owner != null) {
+            storage.setOwner(owner + " index");
+        }
+        storage.allocate(bytesFor(capacity));
+        return new HashIndex(storage, 0, capacity, true);
+    }
+
+    /**
+     * An empty index allocated with {@code allocator} inside the map's storage. The block may
+     * be a freed one holding old slots, so it is cleared.
+     */
+    static HashIndex allocate(OffHeapStorage storage, OffHeapAllocator allocator, int capacity) {
+        HashIndex index = new HashIndex(storage, allocator.allocate(bytesFor(capacity)), capacity, false);
+        index.clear();
+        return index;
+    }
+
+    /**
+     * An index previously written at {@code baseOffset} of {@code storage}, used as found.
+     */
+    static HashIndex stored(OffHeapStorage storage, long baseOffset, int capacity) {
+        return new HashIndex(storage, baseOffset, capacity, false);
+    }
+
+    private void clear() {
+        for (int i = 0; i < capacity; i++) {
+            set(i, EMPTY);
+        }
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    long baseOffset() {
+        return baseOffset;
+    }
+
+    long bytes() {
+        return bytesFor(capacity);
+    }
+
+    /**
+     * Slot a key of this hash is probed from.
+     */
+    int home(int hash) {
+        return (int) ((hash * MIX) >>> shift);
+    }
+
+    int next(int slot) {
+        return (slot + 1) & mask;
+    }
+
+    long get(int slot) {
+        return storage.getLong(baseOffset + 8L * slot);
+    }
+
+    void set(int slot, long value) {
+        storage.putLong(baseOffset + 8L * slot, value);
+    }
+
+    /**
+     * Hash of the entry in {@code slot}; meaningless for an empty slot.
+     */
+    int hash(int slot) {
+        return storage.getInt(baseOffset + 8L * capacity + 4L * slot);
+    }
+
+    private void set(int slot, long value, int hash) {
+        set(slot, value);
+        storage.putInt(baseOffset + 8L * capacity + 4L * slot, hash);
+    }
+
+    static long slotValue(int hash, long entryOffset) {
+        return ((long) fingerprint(hash) << 48) | (entryOffset + 1);
+    }
+
+    static boolean matches(long slotValue, int hash) {
+        return (int) (slotValue >>> 48) == fingerprint(hash);
+    }
+
+    static long entryOffset(long slotValue) {
+        return (slotValue & OFFSET_MASK) - 1;
+    }
+
+    /**
+     * {@code slotValue} pointing at an entry that moved to {@code entryOffset}.
+     */
+    static long withEntryOffset(long slotValue, long entryOffset) {
+        return (slotValue & ~OFFSET_MASK) | (entryOffset + 1);
+    }
+
+    private static int fingerprint(int hash) {
+        // Bits below the ones that pick the home slot, so colliding homes rarely share them
+        return (int) ((hash * MIX) >>> 16) & 0xFFFF;
+    }
+
+    /**
+     * Puts {@code slotValue} in the first empty slot of the run starting at {@code hash}'s home.
+     * The caller has checked that the key is absent and that the table has room.
+     */
+    void insert(int hash, long slotValue) {
+        int slot = home(hash);
+        while (get(slot) != EMPTY) {
+            slot = next(slot);
+        }
+        set(slot, slotValue, hash);
+    }
+
+    /**
+     * Empties {@code slot} and moves later entries of its run back so that every entry stays
+     * reachable from its home without tombstones.
+     */
+    void remove(int slot) {
+        int hole = slot;
+        int current = next(slot);
+        while (true) {
+            long value = get(current);
+            if (value == EMPTY) {
+                break;
+            }
+            int hash = hash(current);
+            int home = home(hash);
+            // Move it into the hole unless its home lies cyclically in (hole, current]
+            if (((current - home) & mask) >= ((current - hole) & mask)) {
+                set(hole, value, hash);
+                hole = current;
+            }
+            current = next(current);
+        }
+        set(hole, EMPTY);
+    }
+
+    /**
+     * Writes the slots to {@code target} at its current position.
+     */
+    void writeTo(FileChannel target) throws IOException {
+        storage.writeTo(target, baseOffset, bytes());
+    }
+
+    /**
+     * Fills the slots from {@code source} at its current position.
+     */
+    void readFrom(FileChannel source) throws IOException {
+        storage.readFrom(source, baseOffset, bytes());
+    }
+
+    /**
+     * Frees the table: its own storage, or its block of the map's storage through {@code allocator}.
+     */
+    void release(OffHeapAllocator allocator) {
+        if (cleanable != null) {
+            cleanable.clean();
+        } else {
+            allocator.free(baseOffset, bytes());
+        }
+    }
+
+    /**
+     * Frees the table if it has a storage of its own. A table inside the map's storage goes with it.
+     */
+    void close() {
+        if (cleanable != null) {
+            cleanable.clean();
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package com.offheap.collections.map;
+
+/**
+ * How an {@link OffHeapMap} decides that a stored key is the one looked up, once hashes match.
+ */
+public enum KeyComparison {
+    /** The stored key is deserialized and compared with {@code equals}. Works with any serializer. */
+    DESERIALIZED,
+    /**
+     * The looked-up key is serialized once and compared with the stored bytes in place, so a
+     * lookup deserializes no keys. Only correct if the key serializer is canonical: keys that are
+     * {@code equals} must always serialize to the same bytes.
+     */
+    BYTES
+}
@@ -1,11 +1,25 @@
 package com.offheap.collections.map;
 
+import com.offheap.collections.SizingHints;
 import com.offheap.serialization.Serializer;
+import com.offheap.storage.ChannelIO;
+import com.offheap.storage.MemoryMappedStorage;
+import com.offheap.storage.OffHeapAllocator;
+import com.offheap.storage.OffHeapResources;
 import com.offheap.storage.OffHeapStorage;
+import com.offheap.storage.WriteAheadLog;
 
+import java.io.IOException;
+import java.lang.invoke.VarHandle;
 import java.lang.ref.Cleaner;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
@@ -13,28 +27,242 @@ public class OffHeapMap<K, V> extends AbstractMap<K, V> implements AutoCloseable
     private final OffHeapStorage storage;
     private final Serializer<K> keySerializer;
     private final Serializer<V> valueSerializer;
-    private long[] buckets;
+    private HashIndex index;
+    private HashIndex draining; // previous index while its slots move to index, else null
+    private int rehashSlot;     // next slot of draining to move
+    private int rehashRemaining;
     private int size = 0;
-    private long dataOffset = 0;
-    private int capacity;
-    private final Cleaner cleaner = Cleaner.create();
+    private final OffHeapAllocator allocator;
     private final Cleaner.Cleanable cleanable;
     private final boolean threadSafe;
     private long operationCount = 0;
     private long totalLatencyNanos = 0;
+    private final boolean persistent;
+    private final boolean readOnly;
+    private int writeDepth;
+    private boolean closed;
+    private long sharedTop;
+    private long sharedSequence;  // write sequence the current shared read started under
+    private long writerTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_WRITER_TIMEOUT_MILLIS);
+    private double compactionThreshold = 0;
+    private long compactionStepNanos = 0;
+    private int compactionCursor = -1; // next index slot to sweep, -1 when no compaction is running
+    private long compactionBoundary;
+    private long compactionLiveEnd;
+    private WriteAheadLog wal;
+    private long checkpointBytes;
+    private long checkpointedLogBytes; // log size right after the last checkpoint
+    private KeyComparison keyComparison = KeyComparison.DESERIALIZED;
     private static final double LOAD_FACTOR = 0.75;
+    /** Slots of the previous index moved per put or remove while the index grows. */
+    private static final int REHASH_STEP_SLOTS = 8;
+    /** Index slots a reader's iterator reads under one write sequence check. */
+    private static final int SHARED_READ_SLOTS = 64;
+    /** Times a reader spins on a write in progress before it starts parking between checks. */
+    private static final int SHARED_READ_SPINS = 100;
+    private static final long SHARED_READ_PARK_NANOS = 50_000;
+    /** How long a reader waits for one write to finish before taking its writer to be dead. */
+    public static final long DEFAULT_WRITER_TIMEOUT_MILLIS = 10_000;
+    /** Storage reserved per element when no {@link SizingHints} are given. */
+    private static final long DEFAULT_BYTES_PER_ENTRY = 1024;
+    private static final long MIN_INITIAL_BYTES = 4096;
+
+    // Persistent header: magic, index capacity, size, allocator top, indexOffset, write sequence,
+    // flags, capacity and offset of the index being drained (0 if none), allocator free bytes and
+    // free lists. The sequence is odd while a write is in progress.
+    private static final long MAGIC = 0x4F484D4150303037L; // "OHMAP007"
+    private static final long CAPACITY_OFFSET = 8;
+    private static final long SIZE_OFFSET = 12;
+    private static final long TOP_OFFSET = 16;
+    private static final long INDEX_OFFSET_OFFSET = 24;
+    private static final long SEQUENCE_OFFSET = 32;
+    private static final long FLAGS_OFFSET = 40;
+    private static final long DRAINING_CAPACITY_OFFSET = 44;
+    private static final long DRAINING_OFFSET_OFFSET = 48;
+    private static final long FREE_BYTES_OFFSET = 56;
+    private static final long FREE_LISTS_OFFSET = 64;
+    // Rounded up to a cache line so that the first block is aligned under either entry alignment
+    private static final long HEADER_SIZE = (FREE_LISTS_OFFSET + OffHeapAllocator.FREE_LISTS_BYTES
+            + OffHeapAllocator.CACHE_LINE_SIZE - 1) & -OffHeapAllocator.CACHE_LINE_SIZE;
+
+    private static final int FLAG_PERSISTENT = 1;
+    private static final int FLAG_CACHE_LINE_ALIGNED = 2;
+
+    // Entry: key length, value length, then the key and value bytes. Entries are not linked to
+    // each other and their hash lives in the index, so growing the index never touches them.
+    private static final long ENTRY_KEY_LENGTH = 0;
+    private static final long ENTRY_VALUE_LENGTH = 4;
+    private static final long ENTRY_HEADER = 8;
+
+    // Snapshot file: magic, flags, index capacity, size, allocator top and free bytes; for a
+    // non-persistent map the index slots and free-list heads follow, then the raw storage bytes
+    private static final long SNAPSHOT_MAGIC = 0x4F484D534E503034L; // "OHMSNP04"
+    private static final int SNAPSHOT_HEADER_SIZE = 8 + 4 + 4 + 4 + 8 + 8;
 
     public OffHeapMap(OffHeapStorage storage, Serializer<K> keySerializer, Serializer<V> valueSerializer,
                       int initialCapacity, boolean threadSafe) {
+        this(storage, keySerializer, valueSerializer, initialCapacity, threadSafe, false);
+    }
+
+    /**
+     * Creates a map. In persistent mode a header and the hash index are kept inside the storage
+     * itself, so a map on a {@link MemoryMappedStorage} can later be reattached with
+     * {@link #OffHeapMap(MemoryMappedStorage, Serializer, Serializer, boolean)}. Otherwise the
+     * index lives in native memory of its own.
+     * <p>
+     * The index gets at least {@code initialCapacity} slots and 1 KB of storage is reserved for
+     * each; use
+     * {@link #OffHeapMap(OffHeapStorage, Serializer, Serializer, SizingHints, boolean, boolean)}
+     * when the entry sizes are known.
+     * <p>
+     * Unless {@code threadSafe}, operations take no lock; the map can still be handed to another
+     * thread.
+     */
+    public OffHeapMap(OffHeapStorage storage, Serializer<K> keySerializer, Serializer<V> valueSerializer,
+                      int initialCapacity, boolean threadSafe, boolean persistent) {
+        this(storage, keySerializer, valueSerializer, initialCapacity, DEFAULT_BYTES_PER_ENTRY * initialCapacity,
+                OffHeapStorage.DEFAULT_GROWTH_FACTOR, threadSafe, persistent);
+    }
+
+    public OffHeapMap(OffHeapStorage storage, Serializer<K> keySerializer, Serializer<V> valueSerializer,
+                      SizingHints hints, boolean threadSafe) {
+        this(storage, keySerializer, valueSerializer, hints, threadSafe, false);
+    }
+
+    /**
+     * Creates a map sized from {@code hints}: enough index slots to hold the expected entries
+     * without rehashing, and storage for that many entries of the average size.
+     */
+    public OffHeapMap(OffHeapStorage storage, Serializer<K> keySerializer, Serializer<V> valueSerializer,
+                      SizingHints hints, boolean threadSafe, boolean persistent) {
+        this(storage, keySerializer, valueSerializer, slotsFor(hints), initialBytes(hints, persistent),
+                hints.getGrowthFactor(), threadSafe, persistent);
+    }
+
+    private OffHeapMap(OffHeapStorage storage, Serializer<K> keySerializer, Serializer<V> valueSerializer,
+                       int initialCapacity, long initialBytes, double growthFactor, boolean threadSafe,
+                       boolean persistent) {
+        this.storage = storage;
+        this.keySerializer = keySerializer;
+        this.valueSerializer = valueSerializer;
+        this.threadSafe = threadSafe;
+        this.persistent = persistent;
+        this.readOnly = false;
+        OffHeapResources.nameOwner(storage, this);
+        storage.allocate(initialBytes);
+        if (persistent) {
+            this.allocator = new OffHeapAllocator(storage, HEADER_SIZE, FREE_LISTS_OFFSET);
+            allocator.clearFreeLists();
+            this.index = HashIndex.allocate(storage, allocator, HashIndex.capacityFor(initialCapacity));
+            storage.putLong(SEQUENCE_OFFSET, 0);
+            writeHeader();
+            // Written last so that a reader never sees the magic before the header is complete
+            VarHandle.releaseFence();
+            storage.putLong(0, MAGIC);
+        } else {
+            this.allocator = new OffHeapAllocator(storage, 0);
+            this.index = HashIndex.standalone(HashIndex.capacityFor(initialCapacity), storage.getOwner());
+        }
+        allocator.setGrowthFactor(growthFactor);
+        this.cleanable = OffHeapResources.register(this, storage);
+    }
+
+    private static int slotsFor(SizingHints hints) {
+        return (int) Math.max(1, Math.ceil(hints.getExpectedEntries() / LOAD_FACTOR));
+    }
+
+    private static long initialBytes(SizingHints hints, boolean persistent) {
+        long entryBytes = OffHeapAllocator.blockSize(
+                ENTRY_HEADER + hints.getAverageKeyBytes() + hints.getAverageValueBytes());
+        long bytes = hints.getExpectedEntries() * entryBytes;
+        if (persistent) {
+            bytes += HEADER_SIZE + OffHeapAllocator.blockSize(HashIndex.bytesFor(HashIndex.capacityFor(slotsFor(hints))));
+        }
+        return Math.max(bytes, MIN_INITIAL_BYTES);
+    }
+
+    /**
+     * Reattaches to a persistent map previously written to {@code storage}'s file. Only the header
+     * is read; entries and the hash index are used in place.
+     */
+    public OffHeapMap(MemoryMappedStorage storage, Serializer<K> keySerializer, Serializer<V> valueSerializer,
+                      boolean threadSafe) {
+        this(storage, keySerializer, valueSerializer, threadSafe, false);
+    }
+
+    private OffHeapMap(MemoryMappedStorage storage, Serializer<K> keySerializer, Serializer<V> valueSerializer,
+                       boolean threadSafe, boolean readOnly) {
         this.storage = storage;
         this.keySerializer = keySerializer;
         this.valueSerializer = valueSerializer;
-        this.capacity = initialCapacity;
-        this.buckets = new long[initialCapacity];
-        Arrays.fill(buckets, -1L);
         this.threadSafe = threadSafe;
-        storage.allocate(1024L * initialCapacity);
-        this.cleanable = cleaner.register(this, this::cleanup);
+        this.persistent = true;
+        this.readOnly = readOnly;
+        OffHeapResources.nameOwner(storage, this);
+        if (readOnly) {
+            storage.openReadOnly();
+        } else {
+            storage.open();
+        }
+        if (storage.getMemoryUsage() < HEADER_SIZE || storage.getLong(0) != MAGIC) {
+            cleanup();
+            throw new IllegalStateException("Storage does not contain a persistent OffHeapMap");
+        }
+        this.size = storage.getInt(SIZE_OFFSET);
+        this.allocator = new OffHeapAllocator(storage, storage.getLong(TOP_OFFSET), FREE_LISTS_OFFSET);
+        allocator.restore(storage.getLong(TOP_OFFSET), storage.getLong(FREE_BYTES_OFFSET), null);
+        allocator.setAlignment(alignmentFor(storage.getInt(FLAGS_OFFSET)));
+        this.index = HashIndex.stored(storage, storage.getLong(INDEX_OFFSET_OFFSET), storage.getInt(CAPACITY_OFFSET));
+        int drainingCapacity = storage.getInt(DRAINING_CAPACITY_OFFSET);
+        if (drainingCapacity != 0 && !readOnly) {
+            // Slots already moved are empty, so the drain simply starts over
+            beginRehash(HashIndex.stored(storage, storage.getLong(DRAINING_OFFSET_OFFSET), drainingCapacity));
+        }
+        long sequence = storage.getLong(SEQUENCE_OFFSET);
+        if (!readOnly && (sequence & 1) != 0) {
+            // The last writer died mid-write; readers must not wait for it forever
+            storage.putLong(SEQUENCE_OFFSET, sequence + 1);
+        }
+        this.cleanable = OffHeapResources.register(this, storage);
+    }
+
+    /**
+     * Opens a read-only view of a persistent map that another process, or another map in this
+     * one, keeps writing to the same file, e.g. under {@code /dev/shm}. The writer's storage
+     * should be {@link MemoryMappedStorage#setShared shared}.
+     * <p>
+     * Reads are lock-free with respect to the writer: each one checks the header's write sequence
+     * before and after and is retried if a write overlapped it. Iteration is consistent per block
+     * of index slots only; entries moved by a concurrent resize or removal may be missed or seen
+     * twice.
+     */
+    public static <K, V> OffHeapMap<K, V> openReader(MemoryMappedStorage storage, Serializer<K> keySerializer,
+                                                     Serializer<V> valueSerializer) {
+        return new OffHeapMap<>(storage, keySerializer, valueSerializer, true, true);
+    }
+
+    private void writeHeader() {
+        if (!persistent) {
+            return;
+        }
+        storage.putInt(CAPACITY_OFFSET, index.capacity());
+        storage.putInt(SIZE_OFFSET, size);
+        storage.putLong(TOP_OFFSET, allocator.top());
+        storage.putLong(FREE_BYTES_OFFSET, allocator.freeBytes());
+        storage.putLong(INDEX_OFFSET_OFFSET, index.baseOffset());
+        storage.putInt(DRAINING_CAPACITY_OFFSET, draining == null ? 0 : draining.capacity());
+        storage.putLong(DRAINING_OFFSET_OFFSET, draining == null ? 0 : draining.baseOffset());
+        storage.putInt(FLAGS_OFFSET, flags());
+    }
+
+    private int flags() {
+        return (persistent ? FLAG_PERSISTENT : 0) | (isCacheLineAligned() ? FLAG_CACHE_LINE_ALIGNED : 0);
+    }
+
+    private static long alignmentFor(int flags) {
+        return (flags & FLAG_CACHE_LINE_ALIGNED) != 0
+                ? OffHeapAllocator.CACHE_LINE_SIZE
+                : OffHeapAllocator.MIN_ALIGNMENT;
     }
 
     private void cleanup() {
@@ -53,115 +281,327 @@ public class OffHeapMap<K, V> extends AbstractMap<K, V> implements AutoCloseable
         return action.get();
     }
 
-    private void ensureStorage(long additionalBytes) {
-        long needed = dataOffset + additionalBytes;
-        if (needed > storage.getMemoryUsage()) {
-            long newSize = storage.getMemoryUsage() * 2;
-            if (newSize < needed) newSize = needed;
-            storage.resize(newSize);
-        }
-    }
-
-    private void resizeBuckets() {
-        int newCapacity = capacity * 2;
-        long[] newBuckets = new long[newCapacity];
-        Arrays.fill(newBuckets, -1L);
-        ByteBuffer buffer = storage.asByteBuffer();
-
-        for (long offset : buckets) {
-            while (offset != -1L) {
-                buffer.position((int) offset);
-                int hash = buffer.getInt();
-                long nextOffset = buffer.getLong();
-                int keyLength = buffer.getInt();
-                byte[] keyData = new byte[keyLength];
-                buffer.get(keyData);
-                int valueLength = buffer.getInt();
-                byte[] valueData = new byte[valueLength];
-                buffer.get(valueData);
-
-                int newIndex = Math.abs(hash % newCapacity);
-                long newEntryOffset = dataOffset;
-                ensureStorage(20L + keyLength + valueLength);
-                buffer.position((int) dataOffset)
-                        .putInt(hash)
-                        .putLong(newBuckets[newIndex])
-                        .putInt(keyLength)
-                        .put(keyData)
-                        .putInt(valueLength)
-                        .put(valueData);
-                newBuckets[newIndex] = newEntryOffset;
-                dataOffset += 20 + keyLength + valueLength;
-                offset = nextOffset;
-            }
-        }
-        buckets = newBuckets;
-        capacity = newCapacity;
+    /**
+     * Runs a mutation, committed to the storage as one write however many nested mutations it
+     * makes. In persistent mode the write sequence is odd while it runs, with the data published
+     * before the sequence turns even again, so shared readers can detect the overlap.
+     */
+    private <T> T write(java.util.function.Supplier<T> action) {
+        if (readOnly) {
+            throw new UnsupportedOperationException("Map was opened read-only");
+        }
+        return sync(() -> {
+            if (writeDepth++ == 0 && persistent) {
+                storage.putLong(SEQUENCE_OFFSET, storage.getLong(SEQUENCE_OFFSET) + 1);
+                VarHandle.storeStoreFence();
+            }
+            try {
+                return action.get();
+            } finally {
+                if (--writeDepth == 0) {
+                    if (persistent) {
+                        VarHandle.releaseFence();
+                        storage.putLong(SEQUENCE_OFFSET, storage.getLong(SEQUENCE_OFFSET) + 1);
+                    }
+                    storage.commit();
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs a read of a {@link #openReader reader} against the header as it is now, retrying until
+     * no write overlapped it. Failures of an overlapped read, errors included, are ignored since
+     * they may come from half-written data. A write in progress is waited for by spinning, then
+     * parking; if the same write stays in progress for longer than the
+     * {@link #setWriterTimeoutMillis writer timeout}, its writer is taken to have died.
+     */
+    private <T> T readShared(java.util.function.Supplier<T> read) {
+        long pending = -1;        // odd sequence being waited for
+        long pendingSince = 0;
+        for (int attempt = 0; ; attempt++) {
+            long sequence = storage.getLong(SEQUENCE_OFFSET);
+            VarHandle.acquireFence();
+            if ((sequence & 1) == 0) {
+                sharedSequence = sequence;
+                T result = null;
+                Throwable failure = null;
+                try {
+                    refreshSharedHeader();
+                    result = read.get();
+                } catch (Throwable e) {
+                    failure = e;
+                }
+                VarHandle.loadLoadFence();
+                if (storage.getLong(SEQUENCE_OFFSET) == sequence) {
+                    if (failure instanceof RuntimeException e) {
+                        throw e;
+                    }
+                    if (failure instanceof Error e) {
+                        throw e;
+                    }
+                    if (failure != null) {
+                        throw new IllegalStateException(failure);
+                    }
+                    return result;
+                }
+            } else if (sequence != pending) {
+                pending = sequence;
+                pendingSince = System.nanoTime();
+            } else if (System.nanoTime() - pendingSince > writerTimeoutNanos) {
+                throw new IllegalStateException("Writer stopped mid-write at sequence " + sequence);
+            }
+            if (attempt < SHARED_READ_SPINS) {
+                Thread.onSpinWait();
+            } else {
+                LockSupport.parkNanos(SHARED_READ_PARK_NANOS);
+            }
+        }
+    }
+
+    private void refreshSharedHeader() {
+        int capacity = storage.getInt(CAPACITY_OFFSET);
+        size = storage.getInt(SIZE_OFFSET);
+        sharedTop = storage.getLong(TOP_OFFSET);
+        if (sharedTop > storage.getMemoryUsage()) {
+            ((MemoryMappedStorage) storage).refresh();
+        }
+        long indexOffset = storage.getLong(INDEX_OFFSET_OFFSET);
+        checkSharedRange(indexOffset, HashIndex.bytesFor(capacity));
+        index = HashIndex.stored(storage, indexOffset, capacity);
+        int drainingCapacity = storage.getInt(DRAINING_CAPACITY_OFFSET);
+        if (drainingCapacity == 0) {
+            draining = null;
+        } else {
+            long drainingOffset = storage.getLong(DRAINING_OFFSET_OFFSET);
+            checkSharedRange(drainingOffset, HashIndex.bytesFor(drainingCapacity));
+            draining = HashIndex.stored(storage, drainingOffset, drainingCapacity);
+        }
+    }
+
+    /**
+     * Rejects offsets a reader picked up from a write in progress before they are dereferenced.
+     */
+    private void checkSharedRange(long offset, long length) {
+        if (offset < HEADER_SIZE || length < 0 || offset + length > sharedTop) {
+            throw new IllegalStateException("Torn read at offset " + offset);
+        }
+    }
+
+    /**
+     * Rejects entry lengths a reader picked up from a write in progress before a buffer that
+     * large is allocated: the entry must end below the top, and the write sequence must not have
+     * moved since the read began.
+     */
+    private void checkSharedEntry(long offset, int keyLength, int valueLength) {
+        if (keyLength < 0 || valueLength < 0) {
+            throw new IllegalStateException("Torn read at offset " + offset);
+        }
+        checkSharedRange(offset, entrySize(keyLength, valueLength));
+        VarHandle.loadLoadFence();
+        if (storage.getLong(SEQUENCE_OFFSET) != sharedSequence) {
+            throw new IllegalStateException("Torn read at offset " + offset);
+        }
+    }
+
+    private HashIndex newIndex(int capacity) {
+        return persistent
+                ? HashIndex.allocate(storage, allocator, capacity)
+                : HashIndex.standalone(capacity, storage.getOwner());
+    }
+
+    /**
+     * Starts doubling the index. The current one keeps serving lookups while later puts and
+     * removes move its slots over a few at a time, so no single operation pays for the whole
+     * rehash. Only slots move; every entry stays where it is in the storage.
+     */
+    private void resizeIndex() {
+        if (draining != null) {
+            finishRehash();
+        }
+        // Slots land at new positions from now on, the running sweep's cursor is meaningless
+        cancelCompaction();
+        HashIndex old = index;
+        index = newIndex(old.capacity() * 2);
+        beginRehash(old);
+        writeHeader();
+    }
+
+    private void beginRehash(HashIndex old) {
+        // Drain from just after an empty slot so that every probe run is moved as a whole: a run
+        // cut in two would leave entries unreachable from their home slot in the old index
+        int start = 0;
+        while (old.get(start) != HashIndex.EMPTY) {
+            start = old.next(start);
+        }
+        draining = old;
+        rehashSlot = old.next(start);
+        rehashRemaining = old.capacity();
+    }
+
+    /**
+     * Moves at least {@code slots} slots of the draining index, and the rest of the run it stops
+     * in, to the current one. Releases the old index once it is empty.
+     */
+    private void rehashStep(int slots) {
+        int moved = 0;
+        while (rehashRemaining > 0) {
+            long value = draining.get(rehashSlot);
+            if (value == HashIndex.EMPTY) {
+                if (moved >= slots) {
+                    return;
+                }
+            } else {
+                index.insert(draining.hash(rehashSlot), value);
+                draining.set(rehashSlot, HashIndex.EMPTY);
+            }
+            rehashSlot = draining.next(rehashSlot);
+            rehashRemaining--;
+            moved++;
+        }
+        draining.release(allocator);
+        draining = null;
+        writeHeader();
+    }
+
+    private void finishRehash() {
+        if (draining != null) {
+            rehashStep(Integer.MAX_VALUE);
+        }
+    }
+
+    private static long entrySize(int keyLength, int valueLength) {
+        return ENTRY_HEADER + keyLength + valueLength;
+    }
+
+    private void writeEntry(long offset, byte[] keyData, byte[] valueData) {
+        storage.putInt(offset + ENTRY_KEY_LENGTH, keyData.length);
+        storage.putInt(offset + ENTRY_VALUE_LENGTH, valueData.length);
+        storage.putBytes(offset + ENTRY_HEADER, keyData);
+        storage.putBytes(offset + ENTRY_HEADER + keyData.length, valueData);
+    }
+
+    /**
+     * Slot of {@code table} holding {@code key}, or -1. Only entries whose slot fingerprint matches the hash
+     * are read from the storage. {@code keyData} is the serialized key when keys are compared as
+     * {@link KeyComparison#BYTES bytes}, otherwise null.
+     */
+    private int slotOf(HashIndex table, Object key, byte[] keyData, int hash) {
+        int slot = table.home(hash);
+        for (int probes = 0; probes < table.capacity(); probes++) {
+            long value = table.get(slot);
+            if (value == HashIndex.EMPTY) {
+                return -1;
+            }
+            if (HashIndex.matches(value, hash) && table.hash(slot) == hash) {
+                long offset = HashIndex.entryOffset(value);
+                if (readOnly) {
+                    checkSharedRange(offset, ENTRY_HEADER);
+                }
+                if (keyEquals(offset, key, keyData)) {
+                    return slot;
+                }
+            }
+            slot = table.next(slot);
+        }
+        // The load factor keeps a slot empty; a full table was read mid-write
+        throw new IllegalStateException("Torn read of the index: no empty slot");
+    }
+
+    private boolean keyEquals(long offset, Object key, byte[] keyData) {
+        int keyLength = storage.getInt(offset + ENTRY_KEY_LENGTH);
+        if (readOnly) {
+            checkSharedEntry(offset, keyLength, storage.getInt(offset + ENTRY_VALUE_LENGTH));
+        }
+        if (keyData != null) {
+            return keyLength == keyData.length && storage.bytesEqual(offset + ENTRY_HEADER, keyData);
+        }
+        byte[] storedKey = new byte[keyLength];
+        storage.getBytes(offset + ENTRY_HEADER, storedKey);
+        return keySerializer.deserialize(storedKey).equals(key);
+    }
+
+    /**
+     * The serialized form of a looked-up key if keys are compared as bytes, otherwise null.
+     */
+    @SuppressWarnings("unchecked")
+    private byte[] probeKey(Object key) {
+        return keyComparison == KeyComparison.BYTES ? keySerializer.serialize((K) key) : null;
+    }
+
+    private byte[] readValue(long offset) {
+        int keyLength = storage.getInt(offset + ENTRY_KEY_LENGTH);
+        int valueLength = storage.getInt(offset + ENTRY_VALUE_LENGTH);
+        if (readOnly) {
+            checkSharedEntry(offset, keyLength, valueLength);
+        }
+        byte[] valueData = new byte[valueLength];
+        storage.getBytes(offset + ENTRY_HEADER + keyLength, valueData);
+        return valueData;
     }
 
     @Override
     public V put(K key, V value) {
-        return sync(() -> {
+        return write(() -> {
             long start = System.nanoTime();
-            if (size >= capacity * LOAD_FACTOR) {
-                resizeBuckets();
+            if (size >= index.capacity() * LOAD_FACTOR) {
+                resizeIndex();
+            } else if (draining != null) {
+                rehashStep(REHASH_STEP_SLOTS);
             }
             byte[] keyData = keySerializer.serialize(key);
             byte[] valueData = valueSerializer.serialize(value);
+            if (wal != null) {
+                wal.appendPut(keyData, valueData);
+            }
             int hash = key.hashCode();
-            int index = Math.abs(hash % capacity);
-
-            ByteBuffer buffer = storage.asByteBuffer();
-            long currentOffset = buckets[index];
-            long prevOffset = -1L;
-            while (currentOffset != -1L) {
-                buffer.position((int) currentOffset);
-                int storedHash = buffer.getInt();
-                long nextOffset = buffer.getLong();
-                int keyLength = buffer.getInt();
-                byte[] storedKey = new byte[keyLength];
-                buffer.get(storedKey);
-                if (storedHash == hash && keySerializer.deserialize(storedKey).equals(key)) {
-                    int valueLength = buffer.getInt();
-                    byte[] oldValueData = new byte[valueLength];
-                    buffer.get(oldValueData);
-                    V oldValue = valueSerializer.deserialize(oldValueData);
-
-                    if (valueData.length != valueLength) {
+            byte[] probe = keyComparison == KeyComparison.BYTES ? keyData : null;
+            HashIndex table = index;
+            int slot = slotOf(index, key, probe, hash);
+            if (slot == -1 && draining != null) {
+                table = draining;
+                slot = slotOf(draining, key, probe, hash);
+            }
+            if (slot != -1) {
+                long offset = HashIndex.entryOffset(table.get(slot));
+                int keyLength = storage.getInt(offset + ENTRY_KEY_LENGTH);
+                int valueLength = storage.getInt(offset + ENTRY_VALUE_LENGTH);
+                V oldValue = valueSerializer.deserialize(readValue(offset));
+
+                if (allocator.reservedSize(entrySize(keyLength, valueData.length))
+                        != allocator.reservedSize(entrySize(keyLength, valueLength))) {
+                    // Already logged as one put above
+                    WriteAheadLog log = wal;
+                    wal = null;
+                    try {
                         remove(key);
                         put(key, value);
-                        totalLatencyNanos += System.nanoTime() - start;
-                        operationCount++;
-                        return oldValue;
+                    } finally {
+                        wal = log;
                     }
-
-                    buffer.position((int) (currentOffset + 20 + keyLength)).put(valueData);
+                    maybeCheckpoint();
                     totalLatencyNanos += System.nanoTime() - start;
                     operationCount++;
                     return oldValue;
                 }
-                prevOffset = currentOffset;
-                currentOffset = nextOffset;
+
+                // Same size class: the block still fits, rewrite the value in place
+                storage.putInt(offset + ENTRY_VALUE_LENGTH, valueData.length);
+                storage.putBytes(offset + ENTRY_HEADER + keyLength, valueData);
+                maybeCheckpoint();
+                totalLatencyNanos += System.nanoTime() - start;
+                operationCount++;
+                return oldValue;
             }
 
             // New entry
-            ensureStorage(20L + keyData.length + valueData.length);
-            long newEntryOffset = dataOffset;
-            buffer.position((int) dataOffset)
-                    .putInt(hash)
-                    .putLong(-1L)
-                    .putInt(keyData.length)
-                    .put(keyData)
-                    .putInt(valueData.length)
-                    .put(valueData);
-            if (prevOffset == -1L) {
-                buffer.position((int) (dataOffset + 4)).putLong(buckets[index]);
-                buckets[index] = newEntryOffset;
-            } else {
-                buffer.position((int) (prevOffset + 4)).putLong(newEntryOffset);
-            }
-            dataOffset += 20 + keyData.length + valueData.length;
+            long newEntryOffset = allocator.allocate(entrySize(keyData.length, valueData.length));
+            writeEntry(newEntryOffset, keyData, valueData);
+            index.insert(hash, HashIndex.slotValue(hash, newEntryOffset));
             size++;
+            maybeCompact();
+            writeHeader();
+            maybeCheckpoint();
             totalLatencyNanos += System.nanoTime() - start;
             operationCount++;
             return null;
@@ -173,37 +613,68 @@ public class OffHeapMap<K, V> extends AbstractMap<K, V> implements AutoCloseable
     public V get(Object key) {
         return sync(() -> {
             long start = System.nanoTime();
-            int hash = key.hashCode();
-            int index = Math.abs(hash % capacity);
-            ByteBuffer buffer = storage.asByteBuffer();
-            long offset = buckets[index];
-
-            while (offset != -1L) {
-                buffer.position((int) offset);
-                int storedHash = buffer.getInt();
-                long nextOffset = buffer.getLong();
-                int keyLength = buffer.getInt();
-                byte[] storedKey = new byte[keyLength];
-                buffer.get(storedKey);
+            V result = readOnly ? readShared(() -> find(key)) : find(key);
+            totalLatencyNanos += System.nanoTime() - start;
+            operationCount++;
+            return result;
+        });
+    }
 
-                if (storedHash == hash && keySerializer.deserialize(storedKey).equals(key)) {
-                    int valueLength = buffer.getInt();
-                    byte[] valueData = new byte[valueLength];
-                    buffer.get(valueData);
-                    V result = valueSerializer.deserialize(valueData);
-                    totalLatencyNanos += System.nanoTime() - start;
-                    operationCount++;
-                    return result;
-                }
-                offset = nextOffset;
-            }
+    private V find(Object key) {
+        long offset = entryOffsetOf(key);
+        if (offset == -1L) {
+            return null; // must return null if not found
+        }
+        return readValueObject(offset);
+    }
 
+    /**
+     * Offset of the entry holding {@code key}, or -1.
+     */
+    private long entryOffsetOf(Object key) {
+        int hash = key.hashCode();
+        byte[] probe = probeKey(key);
+        HashIndex table = index;
+        int slot = slotOf(index, key, probe, hash);
+        if (slot == -1 && draining != null) {
+            table = draining;
+            slot = slotOf(draining, key, probe, hash);
+        }
+        return slot == -1 ? -1L : HashIndex.entryOffset(table.get(slot));
+    }
+
+    /**
+     * Probes the index for {@code key}; neither the stored value nor any other entry is
+     * deserialized.
+     */
+    @Override
+    public boolean containsKey(Object key) {
+        if (key == null) {
+            return false;
+        }
+        return sync(() -> {
+            long start = System.nanoTime();
+            boolean result = readOnly ? readShared(() -> entryOffsetOf(key) != -1L) : entryOffsetOf(key) != -1L;
             totalLatencyNanos += System.nanoTime() - start;
             operationCount++;
-            return null; // must return null if not found
+            return result;
         });
     }
 
+    /**
+     * Scans the entries, deserializing values only.
+     */
+    @Override
+    public boolean containsValue(Object value) {
+        Iterator<V> values = entryIterator(this::readValueObject);
+        while (values.hasNext()) {
+            if (Objects.equals(value, values.next())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Convenience method to return Optional instead of null.
      */
@@ -214,115 +685,613 @@ public class OffHeapMap<K, V> extends AbstractMap<K, V> implements AutoCloseable
     @Override
     @SuppressWarnings("unchecked")
     public V remove(Object key) {
-        return sync(() -> {
+        return write(() -> {
             long start = System.nanoTime();
+            if (draining != null) {
+                rehashStep(REHASH_STEP_SLOTS);
+            }
             int hash = key.hashCode();
-            int index = Math.abs(hash % capacity);
-            ByteBuffer buffer = storage.asByteBuffer();
-            long offset = buckets[index];
-            long prevOffset = -1L;
-
-            while (offset != -1L) {
-                buffer.position((int) offset);
-                int storedHash = buffer.getInt();
-                long nextOffset = buffer.getLong();
-                int keyLength = buffer.getInt();
+            byte[] probe = probeKey(key);
+            HashIndex table = index;
+            int slot = slotOf(index, key, probe, hash);
+            if (slot == -1 && draining != null) {
+                table = draining;
+                slot = slotOf(draining, key, probe, hash);
+            }
+            if (slot == -1) {
+                totalLatencyNanos += System.nanoTime() - start;
+                operationCount++;
+                return null;
+            }
+
+            long offset = HashIndex.entryOffset(table.get(slot));
+            int keyLength = storage.getInt(offset + ENTRY_KEY_LENGTH);
+            int valueLength = storage.getInt(offset + ENTRY_VALUE_LENGTH);
+            V result = valueSerializer.deserialize(readValue(offset));
+            if (wal != null) {
                 byte[] storedKey = new byte[keyLength];
-                buffer.get(storedKey);
-
-                if (storedHash == hash && keySerializer.deserialize(storedKey).equals(key)) {
-                    int valueLength = buffer.getInt();
-                    byte[] valueData = new byte[valueLength];
-                    buffer.get(valueData);
-                    V result = valueSerializer.deserialize(valueData);
-
-                    if (prevOffset == -1L) {
-                        buckets[index] = nextOffset;
-                    } else {
-                        buffer.position((int) (prevOffset + 4)).putLong(nextOffset);
-                    }
+                storage.getBytes(offset + ENTRY_HEADER, storedKey);
+                wal.appendRemove(storedKey);
+            }
 
-                    size--;
-                    totalLatencyNanos += System.nanoTime() - start;
-                    operationCount++;
-                    return result;
+            table.remove(slot);
+            if (compactionCursor != -1) {
+                // The removal may have shifted entries of this run back behind the sweep
+                for (int s = slot; index.get(s) != HashIndex.EMPTY; s = index.next(s)) {
+                    relocateSlot(s);
                 }
-                prevOffset = offset;
-                offset = nextOffset;
             }
-
+            allocator.free(offset, entrySize(keyLength, valueLength));
+            size--;
+            maybeCompact();
+            writeHeader();
+            maybeCheckpoint();
             totalLatencyNanos += System.nanoTime() - start;
             operationCount++;
+            return result;
+        });
+    }
+
+    /**
+     * Replays {@code log} into this map, then logs every later put and remove to it before applying
+     * it. Once the log grows past {@code checkpointBytes}, and past twice what the last checkpoint
+     * left in it, it is checkpointed; 0 leaves checkpointing to explicit {@link #checkpoint()}
+     * calls. The map closes the log on close.
+     */
+    public void attachWriteAheadLog(WriteAheadLog log, long checkpointBytes) {
+        write(() -> {
+            wal = null;
+            log.replay((keyData, valueData) -> {
+                K key = keySerializer.deserialize(keyData);
+                if (valueData == null) {
+                    remove(key);
+                } else {
+                    put(key, valueSerializer.deserialize(valueData));
+                }
+            });
+            this.wal = log;
+            this.checkpointBytes = checkpointBytes;
+            // Everything replayed counts as written since the last checkpoint
+            this.checkpointedLogBytes = 0;
             return null;
         });
     }
 
+    /**
+     * Bounds the write-ahead log. A persistent map on a {@link MemoryMappedStorage} is flushed and
+     * the log emptied. Any other map has no durable copy besides the log, so the log is rewritten
+     * as one put per live entry, which costs a sequential write of all entries.
+     */
+    public void checkpoint() {
+        write(() -> {
+            if (wal == null) {
+                return null;
+            }
+            if (persistent && storage instanceof MemoryMappedStorage mapped) {
+                writeHeader();
+                mapped.flush();
+                wal.truncate();
+            } else {
+                wal.rewrite(this::forEachRawEntry);
+            }
+            checkpointedLogBytes = wal.size();
+            return null;
+        });
+    }
+
+    /**
+     * A rewritten log still holds every live entry, so once those outgrow the threshold the log
+     * must also have doubled since the last checkpoint; otherwise every write would rewrite it.
+     */
+    private void maybeCheckpoint() {
+        if (wal != null && checkpointBytes > 0
+                && wal.size() > Math.max(checkpointBytes, 2 * checkpointedLogBytes)) {
+            checkpoint();
+        }
+    }
+
+    /**
+     * Slots of the draining index, if any, followed by those of the current one. Every entry is
+     * in exactly one of them.
+     */
+    private int slotCount() {
+        return (draining == null ? 0 : draining.capacity()) + index.capacity();
+    }
+
+    private long slotAt(int i) {
+        if (draining != null) {
+            if (i < draining.capacity()) {
+                return draining.get(i);
+            }
+            i -= draining.capacity();
+        }
+        return index.get(i);
+    }
+
+    private void forEachRawEntry(java.util.function.BiConsumer<byte[], byte[]> consumer) {
+        for (int i = 0; i < slotCount(); i++) {
+            long slot = slotAt(i);
+            if (slot == HashIndex.EMPTY) {
+                continue;
+            }
+            long offset = HashIndex.entryOffset(slot);
+            int keyLength = storage.getInt(offset + ENTRY_KEY_LENGTH);
+            byte[] keyData = new byte[keyLength];
+            storage.getBytes(offset + ENTRY_HEADER, keyData);
+            consumer.accept(keyData, readValue(offset));
+        }
+    }
+
+    /**
+     * Writes the map to {@code path} as the index metadata followed by the raw storage bytes.
+     * Nothing is deserialized; entries stream from off-heap memory to the file.
+     */
+    public void snapshotTo(Path path) {
+        write(() -> {
+            cancelCompaction();
+            finishRehash();
+            writeHeader();
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer header = ByteBuffer.allocate(SNAPSHOT_HEADER_SIZE);
+                header.putLong(SNAPSHOT_MAGIC).putInt(flags()).putInt(index.capacity()).putInt(size)
+                        .putLong(allocator.top()).putLong(allocator.freeBytes());
+                ChannelIO.writeFully(channel, header.flip());
+                if (!persistent) {
+                    // A persistent map keeps these in the storage bytes themselves
+                    index.writeTo(channel);
+                    long[] freeListHeads = allocator.freeListHeads();
+                    ChannelIO.writeLongs(channel, freeListHeads.length, i -> freeListHeads[i]);
+                }
+                storage.writeTo(channel, 0, allocator.top());
+            } catch (IOException e) {
+                throw new RuntimeException("Snapshot to " + path + " failed", e);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Replaces the contents of this map with a snapshot written by {@link #snapshotTo}. The map
+     * must use the same serializers and persistence mode as the one that wrote it. An attached
+     * write-ahead log is checkpointed so that it describes the restored contents.
+     */
+    public void restoreFrom(Path path) {
+        write(() -> {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                ByteBuffer header = ChannelIO.readFully(channel, SNAPSHOT_HEADER_SIZE);
+                if (header.getLong() != SNAPSHOT_MAGIC) {
+                    throw new IllegalStateException(path + " is not an OffHeapMap snapshot");
+                }
+                int flags = header.getInt();
+                if (((flags & FLAG_PERSISTENT) != 0) != persistent) {
+                    throw new IllegalStateException("Snapshot persistence mode does not match this map");
+                }
+                int newCapacity = header.getInt();
+                int newSize = header.getInt();
+                long top = header.getLong();
+                long freeBytes = header.getLong();
+                HashIndex restored = null;
+                long[] freeListHeads = null;
+                if (!persistent) {
+                    restored = HashIndex.standalone(newCapacity, storage.getOwner());
+                    restored.readFrom(channel);
+                    freeListHeads = new long[OffHeapAllocator.SIZE_CLASSES];
+                    ChannelIO.readLongs(channel, freeListHeads, freeListHeads.length);
+                }
+                cancelCompaction();
+                if (draining != null) {
+                    if (!persistent) {
+                        draining.close();
+                    }
+                    draining = null;
+                }
+                if (storage.getMemoryUsage() < top) {
+                    storage.resize(storage.nextCapacity(top));
+                }
+                if (persistent) {
+                    // Restore around the live write sequence: the snapshot's is older and writing it,
+                    // even for a moment, could show a shared reader a sequence it already saw
+                    long liveSequence = storage.getLong(SEQUENCE_OFFSET);
+                    storage.readFrom(channel, 0, SEQUENCE_OFFSET);
+                    long restoredSequence = ChannelIO.readFully(channel, Long.BYTES)
+                            .order(ByteOrder.nativeOrder()).getLong();
+                    storage.readFrom(channel, SEQUENCE_OFFSET + Long.BYTES, top - SEQUENCE_OFFSET - Long.BYTES);
+                    storage.putLong(SEQUENCE_OFFSET, Math.max(liveSequence, restoredSequence) | 1);
+                } else {
+                    storage.readFrom(channel, 0, top);
+                }
+                // The restored blocks were sized under the snapshot's alignment
+                allocator.setAlignment(alignmentFor(flags));
+                allocator.restore(top, freeBytes, freeListHeads);
+                size = newSize;
+                if (persistent) {
+                    restored = HashIndex.stored(storage, storage.getLong(INDEX_OFFSET_OFFSET), newCapacity);
+                } else {
+                    index.close();
+                }
+                index = restored;
+            } catch (IOException e) {
+                throw new RuntimeException("Restore from " + path + " failed", e);
+            }
+            checkpoint();
+            return null;
+        });
+    }
+
+    /**
+     * Starts every entry on a cache line instead of a 16-byte boundary, so that a lookup reads an
+     * entry's header and the start of its key from a single line. Each entry is rounded up to a
+     * multiple of 64 bytes, which pays off for small, frequently read entries. Can only be changed
+     * while the map is empty.
+     */
+    public void setCacheLineAligned(boolean aligned) {
+        write(() -> {
+            if (size != 0) {
+                throw new IllegalStateException("Entry alignment can only be changed while the map is empty");
+            }
+            cancelCompaction();
+            finishRehash();
+            allocator.clearFreeLists();
+            allocator.setAlignment(aligned ? OffHeapAllocator.CACHE_LINE_SIZE : OffHeapAllocator.MIN_ALIGNMENT);
+            if (persistent) {
+                allocator.restore(HEADER_SIZE, 0, null);
+                allocator.alignTop();
+                index = HashIndex.allocate(storage, allocator, index.capacity());
+                writeHeader();
+            } else {
+                allocator.restore(0, 0, null);
+            }
+            return null;
+        });
+    }
+
+    public boolean isCacheLineAligned() {
+        return allocator.getAlignment() == OffHeapAllocator.CACHE_LINE_SIZE;
+    }
+
+    /**
+     * Sets how stored keys are compared with looked-up ones. {@link KeyComparison#BYTES} makes
+     * get, put and remove allocate nothing beyond the serialized key, but requires a canonical key
+     * serializer. The setting is not stored with a persistent map.
+     */
+    public void setKeyComparison(KeyComparison keyComparison) {
+        sync(() -> {
+            this.keyComparison = keyComparison;
+            return null;
+        });
+    }
+
+    public KeyComparison getKeyComparison() {
+        return keyComparison;
+    }
+
+    /**
+     * Sets how long a {@link #openReader reader} waits for a single write to finish. A writer
+     * that died mid-write leaves the write sequence odd until a new writer reattaches; past this
+     * timeout reads throw {@link IllegalStateException} instead of waiting for it.
+     */
+    public void setWriterTimeoutMillis(long timeoutMillis) {
+        if (timeoutMillis <= 0) {
+            throw new IllegalArgumentException("Timeout must be positive: " + timeoutMillis);
+        }
+        sync(() -> {
+            this.writerTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            return null;
+        });
+    }
+
+    /**
+     * Enables automatic compaction. Once free blocks make up more than {@code threshold} of the
+     * allocated space, every put and remove runs a compaction step of at most {@code stepNanos}
+     * until the cycle completes. A threshold of 0 disables it.
+     */
+    public void setAutoCompaction(double threshold, long stepNanos) {
+        sync(() -> {
+            this.compactionThreshold = threshold;
+            this.compactionStepNanos = stepNanos;
+            return null;
+        });
+    }
+
+    /**
+     * Moves live entries out of the sparse tail of the storage into free blocks below it, then
+     * lowers the allocation top and shrinks the storage if enough was reclaimed.
+     */
+    public void compact() {
+        write(() -> {
+            if (compactionCursor == -1) {
+                finishRehash();
+                startCompaction();
+            }
+            compactionStep(Long.MAX_VALUE);
+            writeHeader();
+            return null;
+        });
+    }
+
+    private void maybeCompact() {
+        if (compactionCursor == -1) {
+            if (compactionThreshold <= 0 || allocator.freeBytes() <= compactionThreshold * allocator.top()) {
+                return;
+            }
+            if (draining != null) {
+                // The sweep walks a single index; wait for the rehash to finish
+                return;
+            }
+            startCompaction();
+        }
+        compactionStep(compactionStepNanos);
+    }
+
+    private boolean cancelCompaction() {
+        if (compactionCursor == -1) {
+            return false;
+        }
+        allocator.cancelEvacuation();
+        compactionCursor = -1;
+        return true;
+    }
+
+    private void startCompaction() {
+        // With perfect packing every live block would fit below this boundary
+        compactionBoundary = allocator.top() - allocator.freeBytes();
+        compactionLiveEnd = persistent ? HEADER_SIZE : 0;
+        compactionCursor = 0;
+        allocator.beginEvacuation(compactionBoundary);
+        if (persistent) {
+            long tableBytes = index.bytes();
+            long base = index.baseOffset();
+            if (base >= compactionBoundary) {
+                long target = allocator.allocateBelowBoundary(tableBytes);
+                if (target != -1L) {
+                    storage.copy(base, target, tableBytes);
+                    index = HashIndex.stored(storage, target, index.capacity());
+                    allocator.free(base, tableBytes);
+                    base = target;
+                }
+            }
+            compactionLiveEnd = Math.max(compactionLiveEnd, base + allocator.reservedSize(tableBytes));
+        }
+    }
+
+    private void compactionStep(long budgetNanos) {
+        long start = System.nanoTime();
+        while (!allocator.partitionStep(64)) {
+            if (System.nanoTime() - start >= budgetNanos) {
+                return;
+            }
+        }
+        while (compactionCursor < index.capacity()) {
+            relocateSlot(compactionCursor++);
+            if (System.nanoTime() - start >= budgetNanos) {
+                return;
+            }
+        }
+        compactionCursor = -1;
+        long newTop = allocator.endEvacuation(compactionLiveEnd);
+        long target = newTop + newTop / 2;
+        if (target < storage.getMemoryUsage() / 2) {
+            storage.resize(target);
+        }
+    }
+
+    private void relocateSlot(int slot) {
+        long value = index.get(slot);
+        if (value == HashIndex.EMPTY) {
+            return;
+        }
+        long offset = HashIndex.entryOffset(value);
+        int keyLength = storage.getInt(offset + ENTRY_KEY_LENGTH);
+        long entrySize = entrySize(keyLength, storage.getInt(offset + ENTRY_VALUE_LENGTH));
+        if (offset >= compactionBoundary) {
+            long target = allocator.allocateBelowBoundary(entrySize);
+            if (target != -1L) {
+                storage.copy(offset, target, entrySize);
+                index.set(slot, HashIndex.withEntryOffset(value, target));
+                allocator.free(offset, entrySize);
+                offset = target;
+            }
+        }
+        compactionLiveEnd = Math.max(compactionLiveEnd, offset + allocator.reservedSize(entrySize));
+    }
+
     @Override
     public Set<Entry<K, V>> entrySet() {
         return new AbstractSet<>() {
             @Override
             public Iterator<Entry<K, V>> iterator() {
-                return new Iterator<>() {
-                    private int bucketIndex = 0;
-                    private long offset = buckets[0];
-                    private Entry<K, V> nextEntry;
+                return entryIterator(offset -> new SimpleEntry<>(readKey(offset), readValueObject(offset)));
+            }
 
-                    {
-                        advance();
-                    }
+            @Override
+            public boolean contains(Object o) {
+                if (!(o instanceof Entry<?, ?> entry) || entry.getKey() == null) {
+                    return false;
+                }
+                V value = get(entry.getKey());
+                return Objects.equals(value, entry.getValue()) && (value != null || containsKey(entry.getKey()));
+            }
+
+            @Override
+            public int size() {
+                return OffHeapMap.this.size();
+            }
+        };
+    }
+
+    /**
+     * Keys of the map. Iteration deserializes keys only; {@code contains} and {@code remove}
+     * probe the index.
+     */
+    @Override
+    public Set<K> keySet() {
+        return new AbstractSet<>() {
+            @Override
+            public Iterator<K> iterator() {
+                return entryIterator(OffHeapMap.this::readKey);
+            }
 
-                    private void advance() {
-                        while (bucketIndex < capacity && offset == -1L) {
-                            bucketIndex++;
-                            offset = bucketIndex < capacity ? buckets[bucketIndex] : -1L;
-                        }
-                        if (offset != -1L) {
-                            ByteBuffer buffer = storage.asByteBuffer();
-                            buffer.position((int) offset);
-                            buffer.getInt(); // Skip hash
-                            long next = buffer.getLong();
-                            int keyLength = buffer.getInt();
-                            byte[] keyData = new byte[keyLength];
-                            buffer.get(keyData);
-                            int valueLength = buffer.getInt();
-                            byte[] valueData = new byte[valueLength];
-                            buffer.get(valueData);
-                            try {
-                                nextEntry = new SimpleEntry<>(keySerializer.deserialize(keyData),
-                                        valueSerializer.deserialize(valueData));
-                            } catch (Exception e) {
-                                throw new RuntimeException(e);
-                            }
-                            offset = next;
-                        } else {
-                            nextEntry = null;
-                        }
+            @Override
+            public boolean contains(Object o) {
+                return containsKey(o);
+            }
+
+            @Override
+            public boolean remove(Object o) {
+                // remove returns null for a key mapped to null too, so look the key up first
+                return o != null && sync(() -> {
+                    if (!containsKey(o)) {
+                        return false;
                     }
+                    OffHeapMap.this.remove(o);
+                    return true;
+                });
+            }
+
+            @Override
+            public int size() {
+                return OffHeapMap.this.size();
+            }
+        };
+    }
+
+    /**
+     * Values of the map. Iteration deserializes values only.
+     */
+    @Override
+    public Collection<V> values() {
+        return new AbstractCollection<>() {
+            @Override
+            public Iterator<V> iterator() {
+                return entryIterator(OffHeapMap.this::readValueObject);
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                return containsValue(o);
+            }
+
+            @Override
+            public int size() {
+                return OffHeapMap.this.size();
+            }
+        };
+    }
+
+    private K readKey(long offset) {
+        int keyLength = storage.getInt(offset + ENTRY_KEY_LENGTH);
+        if (readOnly) {
+            checkSharedEntry(offset, keyLength, storage.getInt(offset + ENTRY_VALUE_LENGTH));
+        }
+        byte[] keyData = new byte[keyLength];
+        storage.getBytes(offset + ENTRY_HEADER, keyData);
+        return keySerializer.deserialize(keyData);
+    }
+
+    private V readValueObject(long offset) {
+        return valueSerializer.deserialize(readValue(offset));
+    }
+
+    /**
+     * Iterates over the entries, turning each one's offset into what a view needs with
+     * {@code decoder}.
+     */
+    private <T> Iterator<T> entryIterator(java.util.function.LongFunction<T> decoder) {
+        if (readOnly) {
+            return sharedIterator(decoder);
+        }
+        return new Iterator<>() {
+            private int slot = 0;
+            private T nextItem;
+            private boolean hasNextItem;  // nextItem may itself be a null value
 
-                    @Override
-                    public boolean hasNext() {
-                        return nextEntry != null;
+            {
+                advance();
+            }
+
+            private void advance() {
+                while (slot < slotCount() && slotAt(slot) == HashIndex.EMPTY) {
+                    slot++;
+                }
+                hasNextItem = slot < slotCount();
+                if (hasNextItem) {
+                    try {
+                        nextItem = decoder.apply(HashIndex.entryOffset(slotAt(slot++)));
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
                     }
+                } else {
+                    nextItem = null;
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                return hasNextItem;
+            }
+
+            @Override
+            public T next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                T current = nextItem;
+                advance();
+                return current;
+            }
+        };
+    }
 
-                    @Override
-                    public Entry<K, V> next() {
-                        if (!hasNext()) throw new NoSuchElementException();
-                        Entry<K, V> current = nextEntry;
-                        advance();
-                        return current;
+    /**
+     * Iterator of a reader: the index is read in blocks of slots, each under one write sequence
+     * check.
+     */
+    private <T> Iterator<T> sharedIterator(java.util.function.LongFunction<T> decoder) {
+        return new Iterator<>() {
+            private int slot = 0;
+            private Iterator<T> block = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!block.hasNext()) {
+                    int from = slot;
+                    List<T> items = sync(() -> readShared(
+                            () -> from < slotCount() ? readSlots(from, SHARED_READ_SLOTS, decoder) : null));
+                    if (items == null) {
+                        return false;
                     }
-                };
+                    block = items.iterator();
+                    slot += SHARED_READ_SLOTS;
+                }
+                return true;
             }
 
             @Override
-            public int size() {
-                return size;
+            public T next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                return block.next();
             }
         };
     }
 
+    private <T> List<T> readSlots(int from, int count, java.util.function.LongFunction<T> decoder) {
+        List<T> items = new ArrayList<>();
+        for (int i = from; i < Math.min(from + count, slotCount()); i++) {
+            long slot = slotAt(i);
+            if (slot == HashIndex.EMPTY) {
+                continue;
+            }
+            long offset = HashIndex.entryOffset(slot);
+            checkSharedRange(offset, ENTRY_HEADER);
+            items.add(decoder.apply(offset));
+        }
+        return items;
+    }
+
     @Override
     public int size() {
+        if (readOnly) {
+            return sync(() -> readShared(() -> size));
+        }
         return size;
     }
 
@@ -332,10 +1301,73 @@ public class OffHeapMap<K, V> extends AbstractMap<K, V> implements AutoCloseable
 
     @Override
     public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (!readOnly) {
+            write(() -> {
+                // Hand parked free blocks back so a persistent map does not lose them
+                if (cancelCompaction()) {
+                    writeHeader();
+                }
+                if (wal != null) {
+                    wal.close();
+                    wal = null;
+                }
+                return null;
+            });
+        }
+        index.close();
+        if (draining != null) {
+            draining.close();
+        }
         cleanable.clean();
     }
 
+    public long getMemoryUsage() {
+        return storage.getMemoryUsage();
+    }
+
     public double averageLatencyMs() {
         return operationCount > 0 ? (totalLatencyNanos / (double) operationCount) / 1_000_000 : 0;
     }
+
+    /**
+     * Bytes of freed blocks on the allocator's free lists.
+     */
+    long freeBytes() {
+        return sync(allocator::freeBytes);
+    }
+
+    /**
+     * Capacity of the index whose slots are still moving to the current one, or 0.
+     */
+    int drainingCapacity() {
+        return sync(() -> draining == null ? 0 : draining.capacity());
+    }
+
+    /**
+     * Storage offset of the current index; only meaningful in persistent mode.
+     */
+    long indexOffset() {
+        return sync(() -> index.baseOffset());
+    }
+
+    /**
+     * Storage offsets of all entries, in slot order.
+     */
+    long[] entryOffsets() {
+        return sync(() -> {
+            long[] offsets = new long[size];
+            int n = 0;
+            for (int i = 0; i < slotCount(); i++) {
+                long slot = slotAt(i);
+                if (slot != HashIndex.EMPTY) {
+                    offsets[n++] = HashIndex.entryOffset(slot);
+                }
+            }
+            return offsets;
+        });
+    }
 }
@@ -1,8 +1,10 @@
 package com.offheap.collections.set;
 
+import com.offheap.collections.SizingHints;
 import com.offheap.collections.map.OffHeapMap;
 import com.offheap.serialization.Serializer;
 import com.offheap.serialization.JavaSerializer; // Add this import
+import com.offheap.storage.OffHeapResources;
 import com.offheap.storage.OffHeapStorage;
 import java.util.AbstractSet;
 import java.util.Iterator;
@@ -15,9 +17,21 @@ public class OffHeapSet<E> extends AbstractSet<E> implements AutoCloseable {
     private final OffHeapMap<E, Boolean> map;
 
     public OffHeapSet(OffHeapStorage storage, Serializer<E> serializer, int initialCapacity, boolean threadSafe) {
+        OffHeapResources.nameOwner(storage, this);
         this.map = new OffHeapMap<>(storage, serializer, new JavaSerializer<>(), initialCapacity, threadSafe);
     }
 
+    /**
+     * Creates a set sized for the expected number of elements of the average size given by
+     * {@code hints}.
+     */
+    public OffHeapSet(OffHeapStorage storage, Serializer<E> serializer, SizingHints hints, boolean threadSafe) {
+        JavaSerializer<Boolean> valueSerializer = new JavaSerializer<>();
+        OffHeapResources.nameOwner(storage, this);
+        this.map = new OffHeapMap<>(storage, serializer, valueSerializer,
+                hints.withAverageValueBytes(valueSerializer.estimatedSize(Boolean.TRUE)), threadSafe);
+    }
+
     @Override
     public boolean add(E e) {
         return map.put(e, Boolean.TRUE) == null;
@@ -51,4 +65,4 @@ public class OffHeapSet<E> extends AbstractSet<E> implements AutoCloseable {
     public double averageLatencyMs() {
         return map.averageLatencyMs();
     }
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -0,0 +1,33 @@
+package com.offheap.storage;
+
+import java.lang.foreign.Arena;
+
+/**
+ * Kind of {@link Arena} a {@link DirectMemoryStorage} allocates its chunks in.
+ */
+public enum ArenaMode {
+    /**
+     * Usable and closable from any thread. Closing makes every thread that touched the memory
+     * acknowledge it, which costs more the more threads there are.
+     */
+    SHARED,
+    /**
+     * Usable only by the thread that allocated the storage, which lets the JIT drop most access
+     * checks and makes closing cheap. Closing from another thread, including the cleaner of an
+     * unclosed collection, fails and leaves the memory allocated.
+     */
+    CONFINED,
+    /**
+     * Usable from any thread and freed by the garbage collector once unreachable. Closing the
+     * storage only drops its references, so the memory goes back to the system later.
+     */
+    AUTOMATIC;
+
+    Arena newArena() {
+        return switch (this) {
+            case SHARED -> Arena.ofShared();
+            case CONFINED -> Arena.ofConfined();
+            case AUTOMATIC -> Arena.ofAuto();
+        };
+    }
+}
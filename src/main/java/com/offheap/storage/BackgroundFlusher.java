@@ -0,0 +1,18 @@
+package com.offheap.storage;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * One daemon thread shared by the mapped storages and write-ahead logs for background flushes.
+ */
+final class BackgroundFlusher {
+    static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "offheap-flusher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private BackgroundFlusher() {
+    }
+}
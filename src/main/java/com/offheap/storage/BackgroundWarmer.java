@@ -0,0 +1,19 @@
+package com.offheap.storage;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * One daemon thread shared by all storages for {@link WarmupMode#BACKGROUND background} warm-up,
+ * kept apart from the flusher so that warming a large mapping never delays a flush.
+ */
+final class BackgroundWarmer {
+    static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "offheap-warmer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private BackgroundWarmer() {
+    }
+}
@@ -0,0 +1,56 @@
+package com.offheap.storage;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.function.IntToLongFunction;
+
+/**
+ * Helpers for the small on-heap metadata that accompanies raw storage bytes in snapshots.
+ */
+public final class ChannelIO {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private ChannelIO() {
+    }
+
+    public static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Reads exactly {@code length} bytes and returns them flipped for reading.
+     */
+    public static ByteBuffer readFully(FileChannel channel, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Channel ended " + buffer.remaining() + " bytes early");
+            }
+        }
+        return buffer.flip();
+    }
+
+    public static void writeLongs(FileChannel channel, int count, IntToLongFunction values) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        for (int i = 0; i < count; i++) {
+            if (!buffer.hasRemaining()) {
+                writeFully(channel, buffer.flip());
+                buffer.clear();
+            }
+            buffer.putLong(values.applyAsLong(i));
+        }
+        writeFully(channel, buffer.flip());
+    }
+
+    public static void readLongs(FileChannel channel, long[] dst, int count) throws IOException {
+        for (int done = 0; done < count; ) {
+            int n = Math.min(count - done, BUFFER_SIZE / Long.BYTES);
+            readFully(channel, n * Long.BYTES).asLongBuffer().get(dst, done, n);
+            done += n;
+        }
+    }
+}
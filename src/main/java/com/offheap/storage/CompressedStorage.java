@@ -0,0 +1,175 @@
+package com.offheap.storage;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Storage that keeps pages Deflate-compressed in direct memory and caches the recently and
+ * frequently used ones uncompressed. Hot data is read and written at the speed of a plain
+ * {@link DirectMemoryStorage}; the rest costs only its compressed size.
+ * <p>
+ * A modified page is compressed again when it is demoted. Compressed pages are packed with an
+ * {@link OffHeapAllocator}, so the space of a page that was recompressed to a different size is
+ * reused. Pages that do not compress are stored as they are, and pages never written take no
+ * space at all.
+ */
+public class CompressedStorage extends PageCacheStorage {
+    public static final long DEFAULT_PAGE_SIZE = 64 * 1024;
+    private static final long PACKED_CHUNK_SIZE = 1L << 20;
+
+    private final DirectMemoryStorage packed = new DirectMemoryStorage(PACKED_CHUNK_SIZE);
+    private final int level;
+    private Deflater deflater;
+    private Inflater inflater;
+    private final byte[] pageBuffer;
+    private final byte[] compressBuffer;
+    private OffHeapAllocator allocator;
+    private long[] packedOffsets = new long[0];  // -1 when the page was never stored
+    private int[] packedLengths = new int[0];
+    private final BitSet rawPages = new BitSet();
+    private long compressedBytes;
+
+    /**
+     * Creates a storage of 64 KB pages that keeps up to {@code hotBytes} of them uncompressed.
+     */
+    public CompressedStorage(long hotBytes) {
+        this(DEFAULT_PAGE_SIZE, (int) Math.max(1, hotBytes / DEFAULT_PAGE_SIZE), Deflater.BEST_SPEED);
+    }
+
+    /**
+     * Creates a storage of {@code pageSize}-byte pages (a power of two) that keeps up to
+     * {@code maxHotPages} of them uncompressed and compresses the rest at Deflate {@code level}.
+     */
+    public CompressedStorage(long pageSize, int maxHotPages, int level) {
+        super(pageSize, maxHotPages);
+        if (pageSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Page size must fit in a byte array: " + pageSize);
+        }
+        this.level = level;
+        this.pageBuffer = new byte[(int) pageSize];
+        this.compressBuffer = new byte[(int) pageSize];
+    }
+
+    /**
+     * The direct memory holding the compressed pages, e.g. to set its budget before the storage
+     * allocates.
+     */
+    public DirectMemoryStorage getPackedTier() {
+        return packed;
+    }
+
+    /** Bytes of compressed page data currently stored, not counting allocator rounding. */
+    public synchronized long getCompressedBytes() {
+        return compressedBytes;
+    }
+
+    @Override
+    protected void allocateBacking(long bytes) {
+        packed.allocate(PACKED_CHUNK_SIZE);
+        allocator = new OffHeapAllocator(packed, 0);
+        if (deflater == null) {
+            deflater = new Deflater(level);
+            inflater = new Inflater();
+        }
+        packedOffsets = new long[0];
+        packedLengths = new int[0];
+        rawPages.clear();
+        compressedBytes = 0;
+        resizePageArrays(bytes);
+    }
+
+    @Override
+    protected void resizeBacking(long newBytes) {
+        int pages = (int) ((newBytes + pageMask) >>> pageShift);
+        for (int page = pages; page < packedOffsets.length; page++) {
+            discard(page);
+        }
+        resizePageArrays(newBytes);
+    }
+
+    private void resizePageArrays(long bytes) {
+        int oldPages = packedOffsets.length;
+        int pages = (int) ((bytes + pageMask) >>> pageShift);
+        packedOffsets = Arrays.copyOf(packedOffsets, pages);
+        packedLengths = Arrays.copyOf(packedLengths, pages);
+        if (pages > oldPages) {
+            Arrays.fill(packedOffsets, oldPages, pages, -1L);
+        }
+    }
+
+    private void discard(int page) {
+        if (packedOffsets[page] != -1L) {
+            allocator.free(packedOffsets[page], packedLengths[page]);
+            compressedBytes -= packedLengths[page];
+            packedOffsets[page] = -1L;
+            rawPages.clear(page);
+        }
+    }
+
+    @Override
+    protected void loadPage(int page, long hotOffset, long length) {
+        // A page stored before a resize may be shorter than it is now; the rest reads as zeroes
+        Arrays.fill(pageBuffer, (byte) 0);
+        long offset = packedOffsets[page];
+        if (offset != -1L) {
+            int storedLength = packedLengths[page];
+            if (rawPages.get(page)) {
+                packed.getBytes(offset, pageBuffer, 0, storedLength);
+            } else {
+                packed.getBytes(offset, compressBuffer, 0, storedLength);
+                inflater.reset();
+                inflater.setInput(compressBuffer, 0, storedLength);
+                try {
+                    while (!inflater.finished() && inflater.inflate(pageBuffer, inflater.getTotalOut(),
+                            pageBuffer.length - inflater.getTotalOut()) > 0) {
+                        // Keep inflating until the page is complete
+                    }
+                } catch (DataFormatException e) {
+                    throw new IllegalStateException("Compressed page " + page + " is corrupt", e);
+                }
+            }
+        }
+        hot.putBytes(hotOffset, pageBuffer, 0, (int) length);
+    }
+
+    @Override
+    protected void storePage(int page, long hotOffset, long length) {
+        hot.getBytes(hotOffset, pageBuffer, 0, (int) length);
+        deflater.reset();
+        deflater.setInput(pageBuffer, 0, (int) length);
+        deflater.finish();
+        int compressed = 0;
+        while (!deflater.finished() && compressed < compressBuffer.length) {
+            compressed += deflater.deflate(compressBuffer, compressed, compressBuffer.length - compressed);
+        }
+        boolean raw = !deflater.finished() || compressed >= length;
+        byte[] data = raw ? pageBuffer : compressBuffer;
+        int storedLength = raw ? (int) length : compressed;
+
+        discard(page);
+        long offset = allocator.allocate(storedLength);
+        packed.putBytes(offset, data, 0, storedLength);
+        packedOffsets[page] = offset;
+        packedLengths[page] = storedLength;
+        rawPages.set(page, raw);
+        compressedBytes += storedLength;
+    }
+
+    @Override
+    protected void closeBacking() {
+        packed.close();
+        packedOffsets = new long[0];
+        packedLengths = new int[0];
+        rawPages.clear();
+        compressedBytes = 0;
+        if (deflater != null) {
+            deflater.end();
+            inflater.end();
+            deflater = null;
+            inflater = null;
+        }
+    }
+}
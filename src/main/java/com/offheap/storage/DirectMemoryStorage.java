@@ -2,47 +2,177 @@ package com.offheap.storage;
 
 import java.lang.foreign.Arena;
 import java.lang.foreign.MemorySegment;
-import java.lang.foreign.ValueLayout;
-import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
-public class DirectMemoryStorage implements OffHeapStorage {
-    private Arena arena;
-    private MemorySegment segment;
+/**
+ * Native memory storage. By default the data lives in one contiguous segment that is copied on
+ * resize. When constructed with a chunk size the storage is segmented instead: growth appends
+ * fixed-size chunks and existing bytes are never moved.
+ * <p>
+ * Every arena is reported to the {@link NativeMemoryTracker} when tracking is enabled. Released
+ * chunks go to the storage's {@link SegmentPool} if it has room and are freed otherwise.
+ * <p>
+ * Chunks live in {@link ArenaMode#SHARED shared} arenas unless another {@link ArenaMode} is set.
+ * {@link ArenaMode#CONFINED Confined} chunks are opt-in since they tie the storage, and any
+ * collection on it, to the allocating thread. Only shared chunks are pooled.
+ */
+public class DirectMemoryStorage extends SegmentStorage {
+    private final boolean segmented;
+    private final List<Arena> arenas = new ArrayList<>();  // arenas.get(i) owns chunks[i]
     private long allocatedBytes = 0;
+    private SegmentPool pool = SegmentPool.global();
+    private ArenaMode arenaMode = ArenaMode.SHARED;
+    private ArenaMode activeMode = ArenaMode.SHARED;  // mode of the current arenas
+
+    public DirectMemoryStorage() {
+        super(CONTIGUOUS_SHIFT);
+        this.segmented = false;
+    }
+
+    /**
+     * Creates a segmented storage that grows in chunks of {@code chunkSize} bytes (a power of two).
+     */
+    public DirectMemoryStorage(long chunkSize) {
+        super(shiftFor(chunkSize));
+        this.segmented = true;
+    }
+
+    /**
+     * Sets the pool chunks are taken from and released to, instead of {@link SegmentPool#global()}.
+     */
+    public void setPool(SegmentPool pool) {
+        this.pool = pool;
+    }
+
+    public SegmentPool getPool() {
+        return pool;
+    }
+
+    /**
+     * Sets the kind of arena the next {@link #allocate} uses.
+     */
+    public void setArenaMode(ArenaMode arenaMode) {
+        this.arenaMode = arenaMode;
+    }
+
+    /**
+     * The kind of arena the current chunks live in.
+     */
+    public ArenaMode getArenaMode() {
+        return activeMode;
+    }
+
+    @Override
+    protected boolean isConfined() {
+        return activeMode == ArenaMode.CONFINED;
+    }
 
     @Override
     public void allocate(long bytes) {
-        if (segment != null) {
-            arena.close();
+        close();
+        activeMode = arenaMode;
+        if (segmented) {
+            growChunks(bytes);
+            return;
         }
-        // ✅ Use shared arena for multi-threaded access
-        arena = Arena.ofShared();
-        segment = arena.allocate(bytes, ValueLayout.JAVA_BYTE.byteAlignment());
+        addChunk(allocateReserved(bytes));
         allocatedBytes = bytes;
     }
 
     @Override
     public void resize(long newBytes) {
-        // ✅ Use shared arena here as well
-        Arena newArena = Arena.ofShared();
-        MemorySegment newSegment = newArena.allocate(newBytes, ValueLayout.JAVA_BYTE.byteAlignment());
-        if (segment != null && allocatedBytes > 0) {
-            ByteBuffer srcBuf = segment.asByteBuffer();
-            srcBuf.position(0).limit((int) Math.min(allocatedBytes, newBytes));
-            ByteBuffer dstBuf = newSegment.asByteBuffer();
-            dstBuf.put(srcBuf);
-        }
-        if (arena != null) {
-            arena.close();
-        }
-        arena = newArena;
-        segment = newSegment;
+        if (segmented) {
+            if (newBytes > allocatedBytes) {
+                growChunks(newBytes);
+            } else {
+                shrinkChunks(newBytes);
+            }
+            return;
+        }
+        MemorySegment newSegment = allocateReserved(newBytes);
+        Arena newArena = arenas.removeLast();
+        if (chunks.length > 0 && allocatedBytes > 0) {
+            MemorySegment.copy(chunks[0], 0, newSegment, 0, Math.min(allocatedBytes, newBytes));
+        }
+        close();
+        arenas.add(newArena);
+        addChunk(newSegment);
         allocatedBytes = newBytes;
     }
 
+    private void growChunks(long newBytes) {
+        long chunkSize = chunkMask + 1;
+        while (allocatedBytes < newBytes) {
+            addChunk(allocateReserved(chunkSize));
+            allocatedBytes += chunkSize;
+        }
+    }
+
+    private void shrinkChunks(long newBytes) {
+        long chunkSize = chunkMask + 1;
+        int keep = (int) ((newBytes + chunkSize - 1) / chunkSize);
+        while (arenas.size() > keep) {
+            releaseChunk(arenas.removeLast(), chunks[arenas.size()]);
+            release(chunkSize);
+        }
+        chunks = Arrays.copyOf(chunks, keep);
+        allocatedBytes = keep * chunkSize;
+    }
+
+    /**
+     * Reserves {@code bytes} and allocates them, or reuses a pooled segment of that size, and
+     * appends the owning arena to {@link #arenas}.
+     */
+    private MemorySegment allocateReserved(long bytes) {
+        reserve(bytes);
+        SegmentPool.Pooled pooled = activeMode == ArenaMode.SHARED ? pool.take(bytes, chunkAlignment()) : null;
+        Arena arena;
+        MemorySegment segment;
+        if (pooled != null) {
+            arena = pooled.arena();
+            segment = pooled.segment();
+        } else {
+            arena = activeMode.newArena();
+            try {
+                segment = arena.allocate(bytes, chunkAlignment());
+            } catch (OutOfMemoryError e) {
+                release(bytes);
+                if (activeMode != ArenaMode.AUTOMATIC) {
+                    arena.close();
+                }
+                throw e;
+            }
+        }
+        arenas.add(arena);
+        NativeMemoryTracker.recordAllocation(arena, activeMode, this, getOwner() != null ? getOwner() : getBudgetName(), bytes);
+        return segment;
+    }
+
+    private void releaseChunk(Arena arena, MemorySegment segment) {
+        switch (activeMode) {
+            case SHARED -> {
+                if (!pool.offer(arena, segment)) {
+                    arena.close();
+                }
+            }
+            // Throws before anything is released when called from another thread
+            case CONFINED -> arena.close();
+            // Freed by the garbage collector once the segment is unreachable
+            case AUTOMATIC -> {
+            }
+        }
+        NativeMemoryTracker.recordRelease(arena);
+    }
+
     @Override
-    public ByteBuffer asByteBuffer() {
-        return segment.asByteBuffer();
+    public long nextCapacity(long needed, double growthFactor) {
+        if (segmented) {
+            long chunkSize = chunkMask + 1;
+            return (needed + chunkSize - 1) / chunkSize * chunkSize;
+        }
+        return super.nextCapacity(needed, growthFactor);
     }
 
     @Override
@@ -52,10 +182,12 @@ public class DirectMemoryStorage implements OffHeapStorage {
 
     @Override
     public void close() {
-        if (arena != null) {
-            arena.close();
-            arena = null;
-            segment = null;
+        for (int i = 0; i < arenas.size(); i++) {
+            releaseChunk(arenas.get(i), chunks[i]);
         }
+        arenas.clear();
+        chunks = new MemorySegment[0];
+        release(allocatedBytes);
+        allocatedBytes = 0;
     }
 }
@@ -0,0 +1,77 @@
+package com.offheap.storage;
+
+/**
+ * When a {@link MemoryMappedStorage} forces its pages to disk.
+ */
+public final class DurabilityPolicy {
+    public enum Mode {
+        /** Never forced; the OS writes pages back whenever it likes. */
+        NONE,
+        /** Everything is forced once when the storage is closed. */
+        ON_CLOSE,
+        /** Dirty pages are forced in the background at a fixed interval, and on close. */
+        PERIODIC,
+        /**
+         * Dirty pages are forced in one batch once enough writes have been
+         * {@link MemoryMappedStorage#commit() committed} or the delay has passed, and on close.
+         * Concurrent {@link MemoryMappedStorage#flush()} calls share a batch.
+         */
+        GROUP_COMMIT
+    }
+
+    private static final DurabilityPolicy NONE = new DurabilityPolicy(Mode.NONE, 0, 0);
+    private static final DurabilityPolicy ON_CLOSE = new DurabilityPolicy(Mode.ON_CLOSE, 0, 0);
+
+    private final Mode mode;
+    private final long intervalMillis;
+    private final int batchWrites;
+
+    private DurabilityPolicy(Mode mode, long intervalMillis, int batchWrites) {
+        this.mode = mode;
+        this.intervalMillis = intervalMillis;
+        this.batchWrites = batchWrites;
+    }
+
+    public static DurabilityPolicy none() {
+        return NONE;
+    }
+
+    public static DurabilityPolicy onClose() {
+        return ON_CLOSE;
+    }
+
+    public static DurabilityPolicy periodic(long intervalMillis) {
+        if (intervalMillis <= 0) {
+            throw new IllegalArgumentException("Interval must be positive: " + intervalMillis);
+        }
+        return new DurabilityPolicy(Mode.PERIODIC, intervalMillis, 0);
+    }
+
+    /**
+     * Forces dirty pages after {@code batchWrites} writes or {@code maxDelayMillis}, whichever
+     * comes first. A write is one {@link OffHeapStorage#commit()}, i.e. one put or remove of a
+     * collection, however many storage accessors it calls.
+     */
+    public static DurabilityPolicy groupCommit(int batchWrites, long maxDelayMillis) {
+        if (batchWrites <= 0 || maxDelayMillis <= 0) {
+            throw new IllegalArgumentException("Batch size and delay must be positive");
+        }
+        return new DurabilityPolicy(Mode.GROUP_COMMIT, maxDelayMillis, batchWrites);
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public long getIntervalMillis() {
+        return intervalMillis;
+    }
+
+    public int getBatchWrites() {
+        return batchWrites;
+    }
+
+    boolean tracksDirtyPages() {
+        return mode == Mode.PERIODIC || mode == Mode.GROUP_COMMIT;
+    }
+}
@@ -0,0 +1,23 @@
+package com.offheap.storage;
+
+/**
+ * Linux {@code madvise} hints for storage memory. On platforms without {@code madvise} they are
+ * ignored.
+ */
+public enum MemoryAdvice {
+    NORMAL(0),
+    RANDOM(1),
+    SEQUENTIAL(2),
+    WILLNEED(3),
+    /** Drops the pages; anonymous memory reads back as zeroes. Only valid for ranges. */
+    DONTNEED(4),
+    HUGEPAGE(14),
+    /** Faults the pages in writable up front (MADV_POPULATE_WRITE), or pre-touches them on older kernels. */
+    POPULATE(23);
+
+    final int value;
+
+    MemoryAdvice(int value) {
+        this.value = value;
+    }
+}
@@ -0,0 +1,103 @@
+package com.offheap.storage;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A cap on the off-heap memory of a group of storages. Every storage reserves bytes here before
+ * it allocates or maps them and releases them when it shrinks or closes; by default all storages
+ * share {@link #global()}.
+ * <p>
+ * A reservation that would exceed the cap either fails straight away or, when a wait time is
+ * configured, blocks until other storages release enough memory and fails only after the wait
+ * runs out.
+ */
+public class MemoryBudget {
+    private static final MemoryBudget GLOBAL = new MemoryBudget(Long.MAX_VALUE);
+
+    private final Map<String, Long> usageByName = new TreeMap<>();
+    private long capBytes;
+    private long maxWaitMillis;
+    private long usedBytes;
+
+    public MemoryBudget(long capBytes) {
+        this(capBytes, 0);
+    }
+
+    /**
+     * Creates a budget that lets growth wait up to {@code maxWaitMillis} for memory to be released.
+     */
+    public MemoryBudget(long capBytes, long maxWaitMillis) {
+        this.capBytes = capBytes;
+        this.maxWaitMillis = maxWaitMillis;
+    }
+
+    /**
+     * The process-wide budget storages use unless given another one. Unlimited until a cap is set.
+     */
+    public static MemoryBudget global() {
+        return GLOBAL;
+    }
+
+    public synchronized void setCap(long capBytes) {
+        this.capBytes = capBytes;
+        notifyAll();
+    }
+
+    public synchronized void setMaxWaitMillis(long maxWaitMillis) {
+        this.maxWaitMillis = maxWaitMillis;
+    }
+
+    void reserve(String name, long bytes) {
+        if (bytes <= 0) {
+            return;
+        }
+        synchronized (this) {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+            while (usedBytes + bytes > capBytes) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    throw new MemoryBudgetExceededException("Reserving " + bytes + " bytes for " + name
+                            + " exceeds the off-heap budget: " + usedBytes + " of " + capBytes + " bytes in use");
+                }
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new MemoryBudgetExceededException("Interrupted while waiting for off-heap budget");
+                }
+            }
+            usedBytes += bytes;
+            usageByName.merge(name, bytes, Long::sum);
+        }
+    }
+
+    synchronized void release(String name, long bytes) {
+        if (bytes <= 0) {
+            return;
+        }
+        usedBytes -= bytes;
+        usageByName.computeIfPresent(name, (key, used) -> used == bytes ? null : used - bytes);
+        notifyAll();
+    }
+
+    public synchronized long getCap() {
+        return capBytes;
+    }
+
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    public synchronized long getAvailableBytes() {
+        return Math.max(0, capBytes - usedBytes);
+    }
+
+    /**
+     * Bytes currently reserved per storage name. Storages sharing a name are reported together.
+     */
+    public synchronized Map<String, Long> getUsageByName() {
+        return new TreeMap<>(usageByName);
+    }
+}
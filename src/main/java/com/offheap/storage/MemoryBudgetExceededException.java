@@ -0,0 +1,10 @@
+package com.offheap.storage;
+
+/**
+ * Thrown when a storage would grow past the cap of its {@link MemoryBudget}.
+ */
+public class MemoryBudgetExceededException extends RuntimeException {
+    public MemoryBudgetExceededException(String message) {
+        super(message);
+    }
+}
@@ -1,47 +1,206 @@
 package com.offheap.storage;
 
+import java.io.EOFException;
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.MappedByteBuffer;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
 import java.nio.channels.FileChannel;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * File backed storage mapped as a sequence of fixed-size regions. Growth maps new regions
+ * behind the existing ones; only a partially mapped tail region is ever remapped.
+ * <p>
+ * When pages reach the disk is governed by a {@link DurabilityPolicy}. The periodic and group
+ * commit policies track dirty pages so that a flush only forces the ranges written since the
+ * previous one.
+ * <p>
+ * Other processes can map the same file, e.g. under {@code /dev/shm}, with {@link #openReadOnly()}
+ * and pick up growth with {@link #refresh()}. The writing side should then be
+ * {@link #setShared shared} so that it never truncates pages a reader may still have mapped.
+ */
+public class MemoryMappedStorage extends SegmentStorage {
+    public static final long DEFAULT_REGION_SIZE = 1L << 30;
 
-public class MemoryMappedStorage implements OffHeapStorage {
     private final Path path;
+    private final List<Arena> arenas = new ArrayList<>();
     private FileChannel channel;
-    private MappedByteBuffer buffer;
     private long allocatedBytes;
+    private DurabilityPolicy durability = DurabilityPolicy.none();
+    private ScheduledFuture<?> flushTask;
+    private final Object dirtyLock = new Object();
+    private volatile BitSet dirtyPages;
+    private int pendingCommits;
+    private boolean commitScheduled;
+    private boolean readOnly;
+    private boolean shared;
 
     public MemoryMappedStorage(Path path) {
+        this(path, DEFAULT_REGION_SIZE);
+    }
+
+    /**
+     * Creates a storage that maps {@code path} in regions of {@code regionSize} bytes (a power of two).
+     */
+    public MemoryMappedStorage(Path path, long regionSize) {
+        super(shiftFor(regionSize));
         this.path = path;
     }
 
+    /**
+     * Sets when written pages are forced to disk. Takes effect immediately.
+     */
+    public synchronized void setDurability(DurabilityPolicy policy) {
+        if (flushTask != null) {
+            flushTask.cancel(false);
+            flushTask = null;
+        }
+        synchronized (dirtyLock) {
+            // Pages written so far count as dirty for the new policy
+            dirtyPages = policy.tracksDirtyPages() ? allPages() : null;
+            pendingCommits = 0;
+        }
+        durability = policy;
+        if (policy.tracksDirtyPages()) {
+            flushTask = BackgroundFlusher.SCHEDULER.scheduleWithFixedDelay(this::backgroundFlush,
+                    policy.getIntervalMillis(), policy.getIntervalMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public DurabilityPolicy getDurability() {
+        return durability;
+    }
+
     @Override
-    public void allocate(long bytes) {
+    public synchronized void allocate(long bytes) {
         try {
             channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
-            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, bytes);
-            allocatedBytes = bytes;
+            readOnly = false;
+            mapRegions(bytes);
         } catch (IOException e) {
             throw new RuntimeException("Allocation failed", e);
         }
     }
 
+    /**
+     * Maps an existing file at its current length without touching its contents.
+     */
+    public synchronized void open() {
+        try {
+            channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            readOnly = false;
+            mapRegions(channel.size());
+        } catch (IOException e) {
+            throw new RuntimeException("Open failed", e);
+        }
+    }
+
+    /**
+     * Maps an existing file read-only at its current length, e.g. in a process that reads data
+     * another process writes.
+     */
+    public synchronized void openReadOnly() {
+        try {
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+            readOnly = true;
+            mapRegions(channel.size());
+        } catch (IOException e) {
+            throw new RuntimeException("Open failed", e);
+        }
+    }
+
+    /**
+     * Maps whatever the file grew by since it was opened or last refreshed.
+     */
+    public synchronized void refresh() {
+        try {
+            long size = channel.size();
+            if (size > allocatedBytes) {
+                mapRegions(size);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Refresh failed", e);
+        }
+    }
+
+    /**
+     * Marks the file as mapped by other processes too. A shared storage keeps the file at its
+     * largest size: shrinking would unmap pages under readers.
+     */
+    public synchronized void setShared(boolean shared) {
+        this.shared = shared;
+    }
+
+    public boolean isShared() {
+        return shared;
+    }
+
     @Override
-    public void resize(long newBytes) {
+    public synchronized void resize(long newBytes) {
+        if (shared && newBytes < allocatedBytes) {
+            return;
+        }
         try {
-            channel.truncate(newBytes);
-            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, newBytes);
-            allocatedBytes = newBytes;
+            mapRegions(newBytes);
+            if (newBytes < channel.size()) {
+                channel.truncate(newBytes);
+            }
         } catch (IOException e) {
             throw new RuntimeException("Resize failed", e);
         }
     }
 
-    @Override
-    public ByteBuffer asByteBuffer() {
-        return buffer;
+    /**
+     * Maps the file as {@code newBytes}. New regions are mapped before anything is unmapped, so a
+     * failed mapping leaves the storage and its budget reservation as they were.
+     */
+    private void mapRegions(long newBytes) throws IOException {
+        long regionSize = chunkMask + 1;
+        int regions = (int) ((newBytes + regionSize - 1) / regionSize);
+        // Regions past the new end and a tail region whose mapped length changes are replaced
+        int keep = arenas.size();
+        while (keep > 0 && (keep > regions || chunks[keep - 1].byteSize() != regionLength(keep - 1, newBytes))) {
+            keep--;
+        }
+        reserve(newBytes - allocatedBytes);
+        List<Arena> newArenas = new ArrayList<>();
+        List<MemorySegment> newChunks = new ArrayList<>();
+        try {
+            FileChannel.MapMode mode = readOnly ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE;
+            for (int i = keep; i < regions; i++) {
+                Arena arena = Arena.ofShared();
+                newArenas.add(arena);
+                newChunks.add(channel.map(mode, i * regionSize, regionLength(i, newBytes), arena));
+            }
+        } catch (IOException | RuntimeException e) {
+            for (Arena arena : newArenas) {
+                arena.close();
+            }
+            release(newBytes - allocatedBytes);
+            throw e;
+        }
+        while (arenas.size() > keep) {
+            arenas.removeLast().close();
+        }
+        chunks = Arrays.copyOf(chunks, keep);
+        for (int i = 0; i < newChunks.size(); i++) {
+            arenas.add(newArenas.get(i));
+            addChunk(newChunks.get(i));
+        }
+        release(allocatedBytes - newBytes);
+        allocatedBytes = newBytes;
+    }
+
+    private long regionLength(int region, long totalBytes) {
+        long regionSize = chunkMask + 1;
+        return Math.min(regionSize, totalBytes - region * regionSize);
     }
 
     @Override
@@ -50,7 +209,171 @@ public class MemoryMappedStorage implements OffHeapStorage {
     }
 
     @Override
-    public void close() throws IOException {
-        channel.close();
+    public void putInt(long offset, int value) {
+        super.putInt(offset, value);
+        markDirty(offset, Integer.BYTES);
+    }
+
+    @Override
+    public void putLong(long offset, long value) {
+        super.putLong(offset, value);
+        markDirty(offset, Long.BYTES);
+    }
+
+    @Override
+    void written(long offset, long length) {
+        markDirty(offset, length);
+    }
+
+    @Override
+    public void copy(long srcOffset, long dstOffset, long length) {
+        super.copy(srcOffset, dstOffset, length);
+        markDirty(dstOffset, length);
+    }
+
+    /**
+     * Copies from the backing file inside the kernel; the mapping shares its page cache, so the
+     * data is current without a flush.
+     */
+    @Override
+    public void writeTo(FileChannel target, long offset, long length) throws IOException {
+        checkRange(offset, length);
+        long done = 0;
+        while (done < length) {
+            done += channel.transferTo(offset + done, length - done, target);
+        }
+    }
+
+    @Override
+    public void readFrom(FileChannel source, long offset, long length) throws IOException {
+        checkRange(offset, length);
+        long done = 0;
+        while (done < length) {
+            long n = channel.transferFrom(source, offset + done, length - done);
+            if (n <= 0) {
+                throw new EOFException("Source ended " + (length - done) + " bytes early");
+            }
+            done += n;
+        }
+        markDirty(offset, length);
+    }
+
+    private void checkRange(long offset, long length) {
+        if (offset < 0 || length < 0 || offset + length > allocatedBytes) {
+            throw new IndexOutOfBoundsException("Range " + offset + "+" + length + " is outside the storage");
+        }
+    }
+
+    private void markDirty(long offset, long length) {
+        if (dirtyPages == null || length <= 0) {
+            return;
+        }
+        synchronized (dirtyLock) {
+            if (dirtyPages != null) {
+                dirtyPages.set((int) (offset / NativeMemory.PAGE_SIZE), (int) ((offset + length - 1) / NativeMemory.PAGE_SIZE) + 1);
+            }
+        }
+    }
+
+    /**
+     * Counts one write towards a {@link DurabilityPolicy#groupCommit group commit} batch. A full
+     * batch is forced on the background flusher thread, so the writer does not wait for the disk.
+     */
+    @Override
+    public void commit() {
+        if (durability.getMode() != DurabilityPolicy.Mode.GROUP_COMMIT) {
+            return;
+        }
+        synchronized (dirtyLock) {
+            if (dirtyPages == null || ++pendingCommits < durability.getBatchWrites() || commitScheduled) {
+                return;
+            }
+            commitScheduled = true;
+        }
+        BackgroundFlusher.SCHEDULER.execute(this::backgroundFlush);
+    }
+
+    /**
+     * Forces written data to disk: the dirty pages under the periodic and group commit policies,
+     * the whole mapping otherwise. A caller arriving while another flush runs waits for it and
+     * then forces only what was written in the meantime, so concurrent callers share batches.
+     */
+    public synchronized void flush() {
+        BitSet pages;
+        synchronized (dirtyLock) {
+            pages = dirtyPages;
+            if (pages != null) {
+                dirtyPages = new BitSet();
+                pendingCommits = 0;
+                commitScheduled = false;
+            }
+        }
+        if (pages == null) {
+            for (MemorySegment chunk : chunks) {
+                chunk.force();
+            }
+            return;
+        }
+        for (int start = pages.nextSetBit(0); start >= 0; ) {
+            int end = pages.nextClearBit(start);
+            long from = start * NativeMemory.PAGE_SIZE;
+            long to = Math.min(end * NativeMemory.PAGE_SIZE, allocatedBytes);
+            forceRange(from, to - from);
+            start = pages.nextSetBit(end);
+        }
+    }
+
+    private void forceRange(long offset, long length) {
+        long done = 0;
+        while (done < length) {
+            long position = offset + done;
+            MemorySegment chunk = chunks[(int) (position >>> chunkShift)];
+            long local = position & chunkMask;
+            long n = Math.min(length - done, chunk.byteSize() - local);
+            chunk.asSlice(local, n).force();
+            done += n;
+        }
+    }
+
+    int dirtyPageCount() {
+        synchronized (dirtyLock) {
+            return dirtyPages == null ? 0 : dirtyPages.cardinality();
+        }
+    }
+
+    private BitSet allPages() {
+        BitSet pages = new BitSet();
+        pages.set(0, (int) ((allocatedBytes + NativeMemory.PAGE_SIZE - 1) / NativeMemory.PAGE_SIZE));
+        return pages;
+    }
+
+    private void backgroundFlush() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            // Storage closed or unmapped under us; the next run or close() will flush
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (flushTask != null) {
+            flushTask.cancel(false);
+            flushTask = null;
+        }
+        if (durability.getMode() != DurabilityPolicy.Mode.NONE && chunks.length > 0) {
+            flush();
+        }
+        for (Arena arena : arenas) {
+            arena.close();
+        }
+        arenas.clear();
+        chunks = new MemorySegment[0];
+        release(allocatedBytes);
+        allocatedBytes = 0;
+        if (channel != null) {
+            channel.close();
+        }
     }
-}
\ No newline at end of file
+
+}
@@ -0,0 +1,101 @@
+package com.offheap.storage;
+
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandle;
+
+/**
+ * Downcalls into libc for page-level memory hints.
+ */
+final class NativeMemory {
+    static final long PAGE_SIZE;
+    static final long HUGE_PAGE_SIZE = 2L * 1024 * 1024;
+    private static final MethodHandle MADVISE;
+
+    static {
+        Linker linker = Linker.nativeLinker();
+        MADVISE = linker.defaultLookup().find("madvise")
+                .map(address -> linker.downcallHandle(address, FunctionDescriptor.of(
+                        ValueLayout.JAVA_INT, ValueLayout.ADDRESS, ValueLayout.JAVA_LONG, ValueLayout.JAVA_INT)))
+                .orElse(null);
+        long pageSize = 4096;
+        try {
+            MethodHandle getpagesize = linker.defaultLookup().find("getpagesize")
+                    .map(address -> linker.downcallHandle(address, FunctionDescriptor.of(ValueLayout.JAVA_INT)))
+                    .orElse(null);
+            if (getpagesize != null) {
+                pageSize = (int) getpagesize.invokeExact();
+            }
+        } catch (Throwable ignored) {
+        }
+        PAGE_SIZE = pageSize;
+    }
+
+    private NativeMemory() {
+    }
+
+    static boolean isAvailable() {
+        return MADVISE != null;
+    }
+
+    /**
+     * Applies {@code advice} to the whole pages inside {@code [offset, offset + length)} of
+     * {@code segment}. Returns false if the hint was not taken.
+     */
+    static boolean madvise(MemorySegment segment, long offset, long length, MemoryAdvice advice) {
+        boolean applied = madviseOnly(segment, offset, length, advice);
+        if (!applied && advice == MemoryAdvice.POPULATE) {
+            preTouch(segment, offset, length);
+            return true;
+        }
+        return applied;
+    }
+
+    private static boolean madviseOnly(MemorySegment segment, long offset, long length, MemoryAdvice advice) {
+        long start = alignUp(segment.address() + offset);
+        long end = (segment.address() + offset + length) & -PAGE_SIZE;
+        if (MADVISE == null || end <= start) {
+            return false;
+        }
+        try {
+            return (int) MADVISE.invokeExact(MemorySegment.ofAddress(start), end - start, advice.value) == 0;
+        } catch (Throwable ignored) {
+            return false;
+        }
+    }
+
+    /**
+     * Faults the range in without changing its contents. Mapped file ranges are read in like
+     * {@code MappedByteBuffer.load()}; anonymous memory is populated writable where the kernel
+     * supports it. With {@code concurrent} set the range may be written at the same time, so the
+     * fallback only reads a byte per page instead of rewriting it.
+     */
+    static void prefault(MemorySegment segment, long offset, long length, boolean concurrent) {
+        if (segment.isMapped()) {
+            segment.asSlice(offset, length).load();
+        } else if (!concurrent) {
+            madvise(segment, offset, length, MemoryAdvice.POPULATE);
+        } else if (!madviseOnly(segment, offset, length, MemoryAdvice.POPULATE)) {
+            long end = offset + length;
+            for (long position = offset; position < end; position += PAGE_SIZE) {
+                segment.get(ValueLayout.JAVA_BYTE, position);
+            }
+        }
+    }
+
+    /**
+     * Faults every page of the range in by rewriting one byte per page with its own value.
+     */
+    static void preTouch(MemorySegment segment, long offset, long length) {
+        long end = offset + length;
+        for (long position = offset; position < end; position += PAGE_SIZE) {
+            segment.set(ValueLayout.JAVA_BYTE, position, segment.get(ValueLayout.JAVA_BYTE, position));
+        }
+    }
+
+    private static long alignUp(long address) {
+        return (address + PAGE_SIZE - 1) & -PAGE_SIZE;
+    }
+}
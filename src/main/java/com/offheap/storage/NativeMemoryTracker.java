@@ -0,0 +1,176 @@
+package com.offheap.storage;
+
+import java.lang.foreign.Arena;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Opt-in, process-wide record of the arenas {@link DirectMemoryStorage} allocates, with their
+ * owner and allocation site. Enable it with {@link #setEnabled} or
+ * {@code -Doffheap.trackNativeMemory=true}; while disabled nothing is recorded.
+ * <p>
+ * A shared arena is only freed when it is closed. An arena whose storage was garbage collected
+ * before closing it is reported as leaked: its memory stays allocated for the life of the process.
+ * {@link ArenaMode#AUTOMATIC Automatic} arenas are only referenced weakly, so tracking never keeps
+ * them alive; they count as live until the garbage collector frees them.
+ */
+public final class NativeMemoryTracker {
+    private static final int SITE_FRAMES = 8;
+    private static final StackWalker WALKER = StackWalker.getInstance(StackWalker.Option.RETAIN_CLASS_REFERENCE);
+
+    // Keyed by the arena, or for an automatic arena by a weak reference to it
+    private static final Map<Object, Tracked> LIVE = new HashMap<>();
+    private static final ReferenceQueue<Arena> COLLECTED = new ReferenceQueue<>();
+    private static volatile boolean enabled = Boolean.getBoolean("offheap.trackNativeMemory");
+    private static long liveBytes;
+    private static long highWaterBytes;
+    private static long totalAllocatedBytes;
+
+    /**
+     * One live arena. {@code site} starts at the first frame outside the storage classes, usually
+     * the collection that grew. {@code leaked} is true once the owning storage was collected.
+     */
+    public record Allocation(String owner, long bytes, long allocatedAtMillis, StackTraceElement[] site,
+                             boolean leaked) {
+        @Override
+        public String toString() {
+            return owner + ": " + bytes + " bytes" + (leaked ? " (leaked)" : "")
+                    + (site.length > 0 ? " at " + site[0] : "");
+        }
+    }
+
+    private record Tracked(WeakReference<SegmentStorage> storage, String owner, long bytes, long allocatedAtMillis,
+                           StackTraceElement[] site) {
+    }
+
+    private NativeMemoryTracker() {
+    }
+
+    public static void setEnabled(boolean enabled) {
+        NativeMemoryTracker.enabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Records {@code arena} until {@link #recordRelease} or, for an automatic arena, until it is
+     * garbage collected. {@code owner} is the collection the storage backs, or its budget name.
+     */
+    static void recordAllocation(Arena arena, ArenaMode mode, SegmentStorage storage, String owner, long bytes) {
+        if (!enabled) {
+            return;
+        }
+        StackTraceElement[] site = WALKER.walk(frames -> frames
+                .dropWhile(frame -> isInternal(frame.getDeclaringClass()))
+                .limit(SITE_FRAMES)
+                .map(StackWalker.StackFrame::toStackTraceElement)
+                .toArray(StackTraceElement[]::new));
+        Tracked tracked = new Tracked(new WeakReference<>(storage), owner, bytes, System.currentTimeMillis(), site);
+        synchronized (NativeMemoryTracker.class) {
+            expungeCollected();
+            LIVE.put(mode == ArenaMode.AUTOMATIC ? new WeakReference<>(arena, COLLECTED) : arena, tracked);
+            liveBytes += bytes;
+            totalAllocatedBytes += bytes;
+            highWaterBytes = Math.max(highWaterBytes, liveBytes);
+        }
+    }
+
+    static synchronized void recordRelease(Arena arena) {
+        remove(arena);
+    }
+
+    /**
+     * Drops automatic arenas the garbage collector has freed.
+     */
+    private static void expungeCollected() {
+        for (Object collected = COLLECTED.poll(); collected != null; collected = COLLECTED.poll()) {
+            remove(collected);
+        }
+    }
+
+    private static void remove(Object key) {
+        Tracked tracked = LIVE.remove(key);
+        if (tracked != null) {
+            liveBytes -= tracked.bytes();
+        }
+    }
+
+    private static boolean isInternal(Class<?> type) {
+        return type == NativeMemoryTracker.class || type == OffHeapAllocator.class
+                || OffHeapStorage.class.isAssignableFrom(type);
+    }
+
+    public static synchronized long getLiveBytes() {
+        expungeCollected();
+        return liveBytes;
+    }
+
+    public static synchronized int getLiveArenaCount() {
+        expungeCollected();
+        return LIVE.size();
+    }
+
+    /**
+     * Most bytes live at once since tracking started or the last {@link #resetHighWater()}.
+     */
+    public static synchronized long getHighWaterBytes() {
+        return highWaterBytes;
+    }
+
+    public static synchronized void resetHighWater() {
+        expungeCollected();
+        highWaterBytes = liveBytes;
+    }
+
+    /** Bytes allocated while tracking, including those released since. */
+    public static synchronized long getTotalAllocatedBytes() {
+        return totalAllocatedBytes;
+    }
+
+    /**
+     * Every tracked arena that is still open, oldest first.
+     */
+    public static synchronized List<Allocation> getLiveAllocations() {
+        expungeCollected();
+        List<Allocation> allocations = new ArrayList<>(LIVE.size());
+        for (Tracked tracked : LIVE.values()) {
+            allocations.add(new Allocation(tracked.owner(), tracked.bytes(), tracked.allocatedAtMillis(),
+                    tracked.site().clone(), tracked.storage().get() == null));
+        }
+        allocations.sort(Comparator.comparingLong(Allocation::allocatedAtMillis));
+        return allocations;
+    }
+
+    /**
+     * Open arenas whose storage was garbage collected without being closed.
+     */
+    public static List<Allocation> getLeaks() {
+        List<Allocation> leaks = new ArrayList<>();
+        for (Allocation allocation : getLiveAllocations()) {
+            if (allocation.leaked()) {
+                leaks.add(allocation);
+            }
+        }
+        return leaks;
+    }
+
+    /**
+     * Live bytes per owner. Storages that share an owner name are reported together.
+     */
+    public static synchronized Map<String, Long> getLiveBytesByOwner() {
+        expungeCollected();
+        Map<String, Long> byOwner = new TreeMap<>();
+        for (Tracked tracked : LIVE.values()) {
+            byOwner.merge(tracked.owner(), tracked.bytes(), Long::sum);
+        }
+        return byOwner;
+    }
+}
@@ -0,0 +1,384 @@
+package com.offheap.storage;
+
+import java.util.Arrays;
+
+/**
+ * Size-class allocator on top of an {@link OffHeapStorage}.
+ * <p>
+ * Requests are rounded up to a size class: 16-byte steps up to 512 bytes, then four classes per
+ * power of two. Freed blocks go on an intrusive free list for their class (the first 8 bytes of a
+ * free block hold the next free block) and are handed out again before the bump pointer advances.
+ * The free-list heads live either on the heap or, for persistent structures, in the storage
+ * itself at a caller-chosen offset.
+ * <p>
+ * For compaction the owner can start an evacuation: the free lists are split by a boundary in
+ * small {@link #partitionStep steps}, live data above it is moved down with
+ * {@link #allocateBelowBoundary}, and {@link #endEvacuation} finally lowers the top and drops the
+ * free blocks past it.
+ * <p>
+ * Blocks start at multiples of 16 bytes from a 16-byte aligned top. A larger
+ * {@link #setAlignment alignment}, e.g. a cache line, rounds every request up to it, which keeps
+ * all blocks aligned to it as well.
+ */
+public class OffHeapAllocator {
+    public static final int SIZE_CLASSES = 128;
+    /** Bytes needed to keep the free-list heads inside the storage. */
+    public static final long FREE_LISTS_BYTES = 8L * SIZE_CLASSES;
+    public static final long MIN_ALIGNMENT = 16;
+    public static final long CACHE_LINE_SIZE = 64;
+
+    private static final int SMALL_CLASSES = 32;
+    private static final long SMALL_LIMIT = 16L * SMALL_CLASSES;
+    /** Free-list nodes sorted per allocation while the free lists are not yet partitioned. */
+    private static final int MAX_PROBE = 16;
+
+    private final OffHeapStorage storage;
+    private final long[] heapHeads;
+    private final long freeListsOffset;
+    private long top;
+    private long freeBytes;
+    private double growthFactor = OffHeapStorage.DEFAULT_GROWTH_FACTOR;
+    private long alignment = MIN_ALIGNMENT;
+    private long boundary = Long.MAX_VALUE;
+    private long highWater;
+    // Evacuation state, non-null while evacuating
+    private long[] belowHeads;
+    private long[] belowTails;
+    private long[] parkedHeads;
+    private int partitionCursor;
+
+    /**
+     * Creates an allocator that hands out space from {@code top} upwards and keeps its free lists
+     * on the heap.
+     */
+    public OffHeapAllocator(OffHeapStorage storage, long top) {
+        this.storage = storage;
+        this.top = top;
+        this.heapHeads = new long[SIZE_CLASSES];
+        this.freeListsOffset = -1L;
+        Arrays.fill(heapHeads, -1L);
+    }
+
+    /**
+     * Creates an allocator whose free-list heads are stored in {@code storage} at
+     * {@code freeListsOffset}. The heads are used as found; call {@link #clearFreeLists()} when
+     * the region is new.
+     */
+    public OffHeapAllocator(OffHeapStorage storage, long top, long freeListsOffset) {
+        this.storage = storage;
+        this.top = top;
+        this.heapHeads = null;
+        this.freeListsOffset = freeListsOffset;
+    }
+
+    public static int sizeClass(long size) {
+        if (size <= SMALL_LIMIT) {
+            return (int) Math.max(0, (size + 15) / 16 - 1);
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(size - 1);
+        int sub = (int) ((size - 1 - (1L << shift)) >>> (shift - 2));
+        return SMALL_CLASSES + (shift - 9) * 4 + sub;
+    }
+
+    public static long classSize(int sizeClass) {
+        if (sizeClass < SMALL_CLASSES) {
+            return 16L * (sizeClass + 1);
+        }
+        int shift = (sizeClass - SMALL_CLASSES) / 4 + 9;
+        int sub = (sizeClass - SMALL_CLASSES) % 4;
+        return (1L << shift) + (sub + 1) * (1L << (shift - 2));
+    }
+
+    /**
+     * Bytes actually reserved for a request of {@code size} bytes.
+     */
+    public static long blockSize(long size) {
+        return classSize(sizeClass(size));
+    }
+
+    /**
+     * Sets how much the storage grows when the bump pointer runs past its end, as a factor of
+     * its current size.
+     */
+    public void setGrowthFactor(double growthFactor) {
+        this.growthFactor = growthFactor;
+    }
+
+    /**
+     * Rounds requests up to a multiple of {@code alignment}, a power of two of at least 16. Blocks
+     * are only aligned to it if the top is, see {@link #alignTop}. Since {@link #free} rounds the
+     * same way, the alignment must not change while blocks are allocated.
+     */
+    public void setAlignment(long alignment) {
+        if (alignment < MIN_ALIGNMENT || Long.bitCount(alignment) != 1) {
+            throw new IllegalArgumentException("Alignment must be a power of two of at least 16: " + alignment);
+        }
+        this.alignment = alignment;
+    }
+
+    public long getAlignment() {
+        return alignment;
+    }
+
+    /**
+     * Moves the top up to the next multiple of the alignment, leaving the gap unused.
+     */
+    public void alignTop() {
+        top = (top + alignment - 1) & -alignment;
+    }
+
+    /**
+     * Bytes actually reserved for a request of {@code size} bytes under this allocator's alignment.
+     */
+    public long reservedSize(long size) {
+        return blockSize(align(size));
+    }
+
+    private long align(long size) {
+        return (size + alignment - 1) & -alignment;
+    }
+
+    public void clearFreeLists() {
+        for (int i = 0; i < SIZE_CLASSES; i++) {
+            setHead(i, -1L);
+        }
+        freeBytes = 0;
+    }
+
+    /**
+     * Returns the offset of a block of at least {@code size} bytes, growing the storage if needed.
+     */
+    public long allocate(long size) {
+        int sizeClass = sizeClass(align(size));
+        long blockSize = classSize(sizeClass);
+        long offset = takeFree(sizeClass, true);
+        if (offset == -1L) {
+            long needed = top + blockSize;
+            if (needed > storage.getMemoryUsage()) {
+                storage.resize(storage.nextCapacity(needed, growthFactor));
+            }
+            offset = top;
+            top = needed;
+        }
+        if (belowHeads != null) {
+            highWater = Math.max(highWater, offset + blockSize);
+        }
+        return offset;
+    }
+
+    /**
+     * Returns a block obtained from {@link #allocate} with the same {@code size}.
+     */
+    public void free(long offset, long size) {
+        int sizeClass = sizeClass(align(size));
+        if (belowHeads != null) {
+            evacuationPush(sizeClass, offset);
+        } else {
+            storage.putLong(offset, head(sizeClass));
+            setHead(sizeClass, offset);
+        }
+        freeBytes += classSize(sizeClass);
+    }
+
+    /**
+     * During an evacuation, returns a free block below the boundary for {@code size} bytes, or -1
+     * if none is known yet.
+     */
+    public long allocateBelowBoundary(long size) {
+        return takeFree(sizeClass(align(size)), false);
+    }
+
+    private long takeFree(int sizeClass, boolean anyBlock) {
+        if (belowHeads == null) {
+            long head = head(sizeClass);
+            if (head != -1L) {
+                setHead(sizeClass, storage.getLong(head));
+                freeBytes -= classSize(sizeClass);
+            }
+            return head;
+        }
+        if (belowHeads[sizeClass] == -1L) {
+            // Not partitioned yet: sort a few nodes of the main list
+            for (int probe = 0; probe < MAX_PROBE && head(sizeClass) != -1L; probe++) {
+                long node = head(sizeClass);
+                setHead(sizeClass, storage.getLong(node));
+                evacuationPush(sizeClass, node);
+                if (node < boundary) {
+                    break;
+                }
+            }
+        }
+        long node = popBelow(sizeClass);
+        if (node == -1L && anyBlock && parkedHeads[sizeClass] != -1L) {
+            node = parkedHeads[sizeClass];
+            parkedHeads[sizeClass] = storage.getLong(node);
+        }
+        if (node != -1L) {
+            freeBytes -= classSize(sizeClass);
+        }
+        return node;
+    }
+
+    private void evacuationPush(int sizeClass, long node) {
+        if (node < boundary) {
+            if (belowHeads[sizeClass] == -1L) {
+                belowTails[sizeClass] = node;
+            }
+            storage.putLong(node, belowHeads[sizeClass]);
+            belowHeads[sizeClass] = node;
+        } else {
+            storage.putLong(node, parkedHeads[sizeClass]);
+            parkedHeads[sizeClass] = node;
+        }
+    }
+
+    private long popBelow(int sizeClass) {
+        long node = belowHeads[sizeClass];
+        if (node != -1L) {
+            belowHeads[sizeClass] = storage.getLong(node);
+        }
+        return node;
+    }
+
+    /**
+     * Starts moving data below {@code boundary}. Until {@link #endEvacuation} or
+     * {@link #cancelEvacuation}, free blocks are kept apart by side of the boundary, allocations
+     * prefer blocks below it and the highest end handed out is tracked.
+     */
+    public void beginEvacuation(long boundary) {
+        this.boundary = boundary;
+        this.highWater = 0;
+        this.partitionCursor = 0;
+        this.belowHeads = new long[SIZE_CLASSES];
+        this.belowTails = new long[SIZE_CLASSES];
+        this.parkedHeads = new long[SIZE_CLASSES];
+        Arrays.fill(belowHeads, -1L);
+        Arrays.fill(parkedHeads, -1L);
+    }
+
+    /**
+     * Moves up to {@code maxNodes} blocks from the free lists to the side of the boundary they
+     * belong to. Returns true once every free list has been partitioned.
+     */
+    public boolean partitionStep(int maxNodes) {
+        for (int moved = 0; partitionCursor < SIZE_CLASSES && moved < maxNodes; moved++) {
+            long node = head(partitionCursor);
+            if (node == -1L) {
+                partitionCursor++;
+                continue;
+            }
+            setHead(partitionCursor, storage.getLong(node));
+            evacuationPush(partitionCursor, node);
+        }
+        return partitionCursor == SIZE_CLASSES;
+    }
+
+    /**
+     * Abandons an evacuation, returning the sorted blocks to their free lists.
+     */
+    public void cancelEvacuation() {
+        if (belowHeads != null) {
+            endEvacuation(Long.MAX_VALUE);
+        }
+    }
+
+    /**
+     * Finishes an evacuation. {@code liveEnd} is the end of the highest block the owner still uses
+     * apart from those allocated during the evacuation. The top is lowered to the highest live end
+     * and free blocks past it are dropped. Returns the new top.
+     * <p>
+     * Only parked blocks are walked in the common case; the other lists are spliced back as a whole.
+     */
+    public long endEvacuation(long liveEnd) {
+        long newTop = Math.min(top, Math.max(liveEnd, highWater));
+        for (int sizeClass = 0; sizeClass < SIZE_CLASSES; sizeClass++) {
+            if (newTop < top) {
+                long node = head(sizeClass);
+                setHead(sizeClass, -1L);
+                filterInto(sizeClass, node, newTop);
+            }
+            if (belowHeads[sizeClass] != -1L && newTop >= boundary) {
+                // Every block below the boundary survives: splice the whole list in front
+                storage.putLong(belowTails[sizeClass], head(sizeClass));
+                setHead(sizeClass, belowHeads[sizeClass]);
+            } else {
+                filterInto(sizeClass, belowHeads[sizeClass], newTop);
+            }
+            filterInto(sizeClass, parkedHeads[sizeClass], newTop);
+        }
+        belowHeads = null;
+        belowTails = null;
+        parkedHeads = null;
+        boundary = Long.MAX_VALUE;
+        top = newTop;
+        return top;
+    }
+
+    private void filterInto(int sizeClass, long node, long limit) {
+        while (node != -1L) {
+            long next = storage.getLong(node);
+            if (node < limit) {
+                storage.putLong(node, head(sizeClass));
+                setHead(sizeClass, node);
+            } else {
+                freeBytes -= classSize(sizeClass);
+            }
+            node = next;
+        }
+    }
+
+    /**
+     * End of the space handed out so far.
+     */
+    public long top() {
+        return top;
+    }
+
+    /**
+     * Bytes sitting on free lists. An allocator over stored free lists starts at 0 unless the
+     * count saved with them is passed to {@link #restore}.
+     */
+    public long freeBytes() {
+        return freeBytes;
+    }
+
+    /**
+     * Copy of the free-list heads, e.g. to snapshot an allocator whose lists live on the heap.
+     */
+    public long[] freeListHeads() {
+        long[] heads = new long[SIZE_CLASSES];
+        for (int i = 0; i < SIZE_CLASSES; i++) {
+            heads[i] = head(i);
+        }
+        return heads;
+    }
+
+    /**
+     * Resets this allocator to state saved from an allocator over the same bytes. {@code heads}
+     * may be null when the free-list heads live in the storage and were restored along with it.
+     */
+    public void restore(long top, long freeBytes, long[] heads) {
+        if (belowHeads != null) {
+            throw new IllegalStateException("Cannot restore during an evacuation");
+        }
+        this.top = top;
+        this.freeBytes = freeBytes;
+        if (heads != null) {
+            for (int i = 0; i < SIZE_CLASSES; i++) {
+                setHead(i, heads[i]);
+            }
+        }
+    }
+
+    private long head(int sizeClass) {
+        return heapHeads != null ? heapHeads[sizeClass] : storage.getLong(freeListsOffset + 8L * sizeClass);
+    }
+
+    private void setHead(int sizeClass, long offset) {
+        if (heapHeads != null) {
+            heapHeads[sizeClass] = offset;
+        } else {
+            storage.putLong(freeListsOffset + 8L * sizeClass, offset);
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.offheap.storage;
+
+import java.lang.ref.Cleaner;
+
+/**
+ * The one {@link Cleaner} the library uses to release storages whose collection was garbage
+ * collected without being closed. It runs on a single daemon thread, so creating a collection
+ * costs no thread of its own.
+ */
+public final class OffHeapResources {
+    private static final Cleaner CLEANER = Cleaner.create(runnable -> {
+        Thread thread = new Thread(runnable, "offheap-cleaner");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private OffHeapResources() {
+    }
+
+    /**
+     * Names {@code collection} as the owner of {@code storage}, unless a collection wrapping it,
+     * e.g. a set around its map, already did.
+     */
+    public static void nameOwner(OffHeapStorage storage, Object collection) {
+        if (storage.getOwner() == null) {
+            storage.setOwner(collection.getClass().getSimpleName() + "@"
+                    + Integer.toHexString(System.identityHashCode(collection)));
+        }
+    }
+
+    /**
+     * Closes {@code resource} once {@code owner} becomes unreachable, or when the returned
+     * cleanable is cleaned, whichever happens first. {@code resource} must not refer back to
+     * {@code owner}, or the owner never becomes unreachable.
+     */
+    public static Cleaner.Cleanable register(Object owner, AutoCloseable resource) {
+        return CLEANER.register(owner, () -> {
+            try {
+                resource.close();
+            } catch (Exception ignored) {
+                // Nobody is left to report this to
+            }
+        });
+    }
+}
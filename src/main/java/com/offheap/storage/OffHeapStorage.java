@@ -1,10 +1,90 @@
 package com.offheap.storage;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 public interface OffHeapStorage extends AutoCloseable {
     void allocate(long bytes);
     void resize(long newBytes);
+
+    /**
+     * Legacy view of the storage. Limited to 2 GB; use the long-addressed accessors below instead.
+     */
     ByteBuffer asByteBuffer();
     long getMemoryUsage();
-}
\ No newline at end of file
+
+    /** Factor by which {@link #nextCapacity(long)} grows the storage. */
+    double DEFAULT_GROWTH_FACTOR = 2.0;
+
+    /**
+     * Size to pass to {@link #resize} so that at least {@code needed} bytes are addressable.
+     */
+    default long nextCapacity(long needed) {
+        return nextCapacity(needed, DEFAULT_GROWTH_FACTOR);
+    }
+
+    /**
+     * Like {@link #nextCapacity(long)}, growing by {@code growthFactor} times the current size.
+     * Storages that grow without copying can override this to avoid over-reserving.
+     */
+    default long nextCapacity(long needed, double growthFactor) {
+        return Math.max((long) (getMemoryUsage() * growthFactor), needed);
+    }
+
+    /**
+     * Names the collection this storage backs, e.g. in {@link NativeMemoryTracker} reports.
+     * Storages that report nothing per owner ignore it.
+     */
+    default void setOwner(String owner) {
+    }
+
+    /**
+     * The name set with {@link #setOwner}, or null.
+     */
+    default String getOwner() {
+        return null;
+    }
+
+    /**
+     * Marks the end of one logical write, e.g. a put or remove of a collection. Collections call
+     * it once per mutation; storages that batch writes for durability count these rather than
+     * individual accessor calls. The default does nothing.
+     */
+    default void commit() {
+    }
+
+    int getInt(long offset);
+    void putInt(long offset, int value);
+    long getLong(long offset);
+    void putLong(long offset, long value);
+    void getBytes(long offset, byte[] dst);
+    void putBytes(long offset, byte[] src);
+
+    /**
+     * True if the {@code expected.length} bytes at {@code offset} equal {@code expected}. Storages
+     * that can compare in place override this to avoid copying the stored bytes.
+     */
+    default boolean bytesEqual(long offset, byte[] expected) {
+        byte[] stored = new byte[expected.length];
+        getBytes(offset, stored);
+        return java.util.Arrays.equals(stored, expected);
+    }
+
+    /**
+     * Copies {@code length} bytes within the storage. Overlapping ranges are handled like memmove.
+     */
+    void copy(long srcOffset, long dstOffset, long length);
+
+    /**
+     * Writes {@code length} bytes starting at {@code offset} to {@code target} at its current
+     * position, straight from off-heap memory.
+     */
+    void writeTo(FileChannel target, long offset, long length) throws IOException;
+
+    /**
+     * Fills {@code length} bytes starting at {@code offset} from {@code source} at its current
+     * position, straight into off-heap memory.
+     */
+    void readFrom(FileChannel source, long offset, long length) throws IOException;
+}
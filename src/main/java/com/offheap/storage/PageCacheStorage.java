@@ -0,0 +1,411 @@
+package com.offheap.storage;
+
+import java.io.IOException;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Accessors shared by the storages that keep their contents somewhere slower or denser and cache
+ * a bounded set of fixed-size pages in a {@link DirectMemoryStorage} hot tier.
+ * <p>
+ * Every access goes through the hot tier. A page that is not resident is promoted with
+ * {@link #loadPage}; when the hot tier is full a CLOCK sweep picks the page to demote. Each hit
+ * bumps a small reference count that the sweep decrements, so pages that are used often survive
+ * more sweeps than pages touched once. Demoted pages are handed to {@link #storePage} only if
+ * they were modified.
+ * <p>
+ * The hot tier grows a page at a time up to its limit and never moves pages it already holds.
+ * If its {@link MemoryBudget} runs out first it stops growing and keeps the pages it has.
+ */
+abstract class PageCacheStorage implements OffHeapStorage {
+    /** Most hits the sweep remembers for a page. */
+    private static final byte MAX_REFERENCES = 3;
+
+    protected final DirectMemoryStorage hot;
+    protected final int pageShift;
+    protected final long pageMask;
+    private final int maxHotPages;
+    private long allocatedBytes;
+    private int[] pageSlots = new int[0];  // hot slot per page, -1 when the page is not resident
+    private int[] slotPages = new int[0];  // page per hot slot, -1 when the slot is free
+    private byte[] references = new byte[0];
+    private final BitSet dirtySlots = new BitSet();
+    private int clockHand;
+    private long promotions;
+    private long demotions;
+
+    /**
+     * Caches up to {@code maxHotPages} pages of {@code pageSize} bytes (a power of two).
+     */
+    protected PageCacheStorage(long pageSize, int maxHotPages) {
+        if (maxHotPages <= 0) {
+            throw new IllegalArgumentException("Hot tier needs at least one page: " + maxHotPages);
+        }
+        this.pageShift = SegmentStorage.shiftFor(pageSize);
+        this.pageMask = pageSize - 1;
+        this.maxHotPages = maxHotPages;
+        this.hot = new DirectMemoryStorage(pageSize);
+    }
+
+    /** Sizes the backing store to {@code bytes}, discarding what it held. */
+    protected abstract void allocateBacking(long bytes);
+
+    /** Resizes the backing store. Pages at or past the new end are no longer resident. */
+    protected abstract void resizeBacking(long newBytes);
+
+    /** Fills {@code length} bytes of the hot tier at {@code hotOffset} with page {@code page}. */
+    protected abstract void loadPage(int page, long hotOffset, long length);
+
+    /** Saves {@code length} modified bytes of page {@code page} from the hot tier at {@code hotOffset}. */
+    protected abstract void storePage(int page, long hotOffset, long length);
+
+    /** Releases the backing store. Modified hot pages that were not stored are lost. */
+    protected abstract void closeBacking() throws IOException;
+
+    /**
+     * The direct memory tier, e.g. to set its budget or advice before the storage allocates.
+     */
+    public DirectMemoryStorage getHotTier() {
+        return hot;
+    }
+
+    /**
+     * Names the owner of the hot tier, the only native memory this storage allocates.
+     */
+    @Override
+    public void setOwner(String owner) {
+        hot.setOwner(owner);
+    }
+
+    @Override
+    public String getOwner() {
+        return hot.getOwner();
+    }
+
+    @Override
+    public synchronized void allocate(long bytes) {
+        allocateBacking(bytes);
+        hot.allocate(0);
+        slotPages = new int[0];
+        references = new byte[0];
+        dirtySlots.clear();
+        clockHand = 0;
+        pageSlots = new int[0];
+        allocatedBytes = 0;
+        resizePageTable(bytes);
+    }
+
+    @Override
+    public synchronized void resize(long newBytes) {
+        // Pages reaching past the smaller end change length; drop them so they reload at the new one
+        long end = Math.min(allocatedBytes, newBytes);
+        for (int slot = 0; slot < slotPages.length; slot++) {
+            if (slotPages[slot] == -1) {
+                continue;
+            }
+            long pageStart = (long) slotPages[slot] << pageShift;
+            if (pageStart + pageMask + 1 > end) {
+                if (pageStart >= newBytes) {
+                    dirtySlots.clear(slot);
+                }
+                demote(slot);
+            }
+        }
+        resizeBacking(newBytes);
+        resizePageTable(newBytes);
+    }
+
+    private void resizePageTable(long newBytes) {
+        long pages = (newBytes + pageMask) >>> pageShift;
+        if (pages > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many pages for " + newBytes + " bytes, use a larger page size");
+        }
+        int oldPages = pageSlots.length;
+        pageSlots = Arrays.copyOf(pageSlots, (int) pages);
+        if (pages > oldPages) {
+            Arrays.fill(pageSlots, oldPages, (int) pages, -1);
+        }
+        allocatedBytes = newBytes;
+        growHotTier((int) Math.min(maxHotPages, pages));
+    }
+
+    private void growHotTier(int slots) {
+        int oldSlots = slotPages.length;
+        if (slots <= oldSlots) {
+            return;
+        }
+        try {
+            hot.resize((long) slots << pageShift);
+        } catch (MemoryBudgetExceededException e) {
+            if (oldSlots == 0) {
+                throw e;
+            }
+            return;
+        }
+        slotPages = Arrays.copyOf(slotPages, slots);
+        Arrays.fill(slotPages, oldSlots, slots, -1);
+        references = Arrays.copyOf(references, slots);
+    }
+
+    /**
+     * Offset in the hot tier of the byte at {@code offset}, promoting its page if needed.
+     */
+    private long hotOffset(long offset) {
+        int page = (int) (offset >>> pageShift);
+        int slot = pageSlots[page];
+        if (slot == -1) {
+            slot = promote(page);
+        } else if (references[slot] < MAX_REFERENCES) {
+            references[slot]++;
+        }
+        return ((long) slot << pageShift) | (offset & pageMask);
+    }
+
+    private int promote(int page) {
+        int slot = freeSlot();
+        loadPage(page, (long) slot << pageShift, pageLength(page));
+        slotPages[slot] = page;
+        pageSlots[page] = slot;
+        references[slot] = 1;
+        promotions++;
+        return slot;
+    }
+
+    private int freeSlot() {
+        while (true) {
+            int slot = clockHand;
+            clockHand = (clockHand + 1) % slotPages.length;
+            if (slotPages[slot] == -1) {
+                return slot;
+            }
+            if (references[slot] == 0) {
+                demote(slot);
+                return slot;
+            }
+            references[slot]--;
+        }
+    }
+
+    private void demote(int slot) {
+        int page = slotPages[slot];
+        writeBack(slot);
+        pageSlots[page] = -1;
+        slotPages[slot] = -1;
+        references[slot] = 0;
+        demotions++;
+    }
+
+    private void writeBack(int slot) {
+        if (dirtySlots.get(slot)) {
+            int page = slotPages[slot];
+            storePage(page, (long) slot << pageShift, pageLength(page));
+            dirtySlots.clear(slot);
+        }
+    }
+
+    private long pageLength(int page) {
+        return Math.min(pageMask + 1, allocatedBytes - ((long) page << pageShift));
+    }
+
+    private void markDirty(long hotOffset) {
+        dirtySlots.set((int) (hotOffset >>> pageShift));
+    }
+
+    /** Bytes from {@code offset} to the end of its page, capped at {@code length}. */
+    private int pieceLength(long offset, long length) {
+        return (int) Math.min(length, pageMask + 1 - (offset & pageMask));
+    }
+
+    private void checkRange(long offset, long length) {
+        if (offset < 0 || length < 0 || offset + length > allocatedBytes) {
+            throw new IndexOutOfBoundsException("Range " + offset + "+" + length + " is outside the storage");
+        }
+    }
+
+    @Override
+    public ByteBuffer asByteBuffer() {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " has no contiguous view");
+    }
+
+    /**
+     * Addressable bytes. See {@link #getHotBytes()} for the direct memory the hot tier uses.
+     */
+    @Override
+    public synchronized long getMemoryUsage() {
+        return allocatedBytes;
+    }
+
+    public synchronized long getHotBytes() {
+        return hot.getMemoryUsage();
+    }
+
+    /** Pages loaded into the hot tier so far. */
+    public synchronized long getPromotions() {
+        return promotions;
+    }
+
+    /** Pages dropped from the hot tier so far, written back first if they were modified. */
+    public synchronized long getDemotions() {
+        return demotions;
+    }
+
+    synchronized boolean isHot(long offset) {
+        return pageSlots[(int) (offset >>> pageShift)] != -1;
+    }
+
+    @Override
+    public synchronized int getInt(long offset) {
+        checkRange(offset, Integer.BYTES);
+        if (pieceLength(offset, Integer.BYTES) == Integer.BYTES) {
+            return hot.getInt(hotOffset(offset));
+        }
+        byte[] bytes = new byte[Integer.BYTES];
+        getBytes(offset, bytes);
+        return MemorySegment.ofArray(bytes).get(ValueLayout.JAVA_INT_UNALIGNED, 0);
+    }
+
+    @Override
+    public synchronized void putInt(long offset, int value) {
+        checkRange(offset, Integer.BYTES);
+        if (pieceLength(offset, Integer.BYTES) == Integer.BYTES) {
+            long hotOffset = hotOffset(offset);
+            hot.putInt(hotOffset, value);
+            markDirty(hotOffset);
+            return;
+        }
+        byte[] bytes = new byte[Integer.BYTES];
+        MemorySegment.ofArray(bytes).set(ValueLayout.JAVA_INT_UNALIGNED, 0, value);
+        putBytes(offset, bytes);
+    }
+
+    @Override
+    public synchronized long getLong(long offset) {
+        checkRange(offset, Long.BYTES);
+        if (pieceLength(offset, Long.BYTES) == Long.BYTES) {
+            return hot.getLong(hotOffset(offset));
+        }
+        byte[] bytes = new byte[Long.BYTES];
+        getBytes(offset, bytes);
+        return MemorySegment.ofArray(bytes).get(ValueLayout.JAVA_LONG_UNALIGNED, 0);
+    }
+
+    @Override
+    public synchronized void putLong(long offset, long value) {
+        checkRange(offset, Long.BYTES);
+        if (pieceLength(offset, Long.BYTES) == Long.BYTES) {
+            long hotOffset = hotOffset(offset);
+            hot.putLong(hotOffset, value);
+            markDirty(hotOffset);
+            return;
+        }
+        byte[] bytes = new byte[Long.BYTES];
+        MemorySegment.ofArray(bytes).set(ValueLayout.JAVA_LONG_UNALIGNED, 0, value);
+        putBytes(offset, bytes);
+    }
+
+    @Override
+    public synchronized void getBytes(long offset, byte[] dst) {
+        getBytes(offset, dst, 0, dst.length);
+    }
+
+    private void getBytes(long offset, byte[] dst, int index, int length) {
+        checkRange(offset, length);
+        int done = 0;
+        while (done < length) {
+            int n = pieceLength(offset + done, length - done);
+            hot.getBytes(hotOffset(offset + done), dst, index + done, n);
+            done += n;
+        }
+    }
+
+    @Override
+    public synchronized void putBytes(long offset, byte[] src) {
+        putBytes(offset, src, 0, src.length);
+    }
+
+    private void putBytes(long offset, byte[] src, int index, int length) {
+        checkRange(offset, length);
+        int done = 0;
+        while (done < length) {
+            int n = pieceLength(offset + done, length - done);
+            long hotOffset = hotOffset(offset + done);
+            hot.putBytes(hotOffset, src, index + done, n);
+            markDirty(hotOffset);
+            done += n;
+        }
+    }
+
+    /**
+     * Copies through a page-sized heap buffer, since source and destination pages need not be
+     * resident at the same time.
+     */
+    @Override
+    public synchronized void copy(long srcOffset, long dstOffset, long length) {
+        checkRange(srcOffset, length);
+        checkRange(dstOffset, length);
+        byte[] buffer = new byte[(int) Math.min(length, pageMask + 1)];
+        if (dstOffset <= srcOffset) {
+            // Front to back: each piece is read in full before it is written
+            for (long done = 0; done < length; ) {
+                int n = (int) Math.min(length - done, buffer.length);
+                getBytes(srcOffset + done, buffer, 0, n);
+                putBytes(dstOffset + done, buffer, 0, n);
+                done += n;
+            }
+        } else {
+            for (long remaining = length; remaining > 0; ) {
+                int n = (int) Math.min(remaining, buffer.length);
+                remaining -= n;
+                getBytes(srcOffset + remaining, buffer, 0, n);
+                putBytes(dstOffset + remaining, buffer, 0, n);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void writeTo(FileChannel target, long offset, long length) throws IOException {
+        checkRange(offset, length);
+        long done = 0;
+        while (done < length) {
+            int n = pieceLength(offset + done, length - done);
+            hot.writeTo(target, hotOffset(offset + done), n);
+            done += n;
+        }
+    }
+
+    @Override
+    public synchronized void readFrom(FileChannel source, long offset, long length) throws IOException {
+        checkRange(offset, length);
+        long done = 0;
+        while (done < length) {
+            int n = pieceLength(offset + done, length - done);
+            long hotOffset = hotOffset(offset + done);
+            hot.readFrom(source, hotOffset, n);
+            markDirty(hotOffset);
+            done += n;
+        }
+    }
+
+    /**
+     * Stores every modified hot page. The pages stay hot.
+     */
+    protected void writeBackAll() {
+        for (int slot = dirtySlots.nextSetBit(0); slot >= 0; slot = dirtySlots.nextSetBit(slot + 1)) {
+            writeBack(slot);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        hot.close();
+        slotPages = new int[0];
+        references = new byte[0];
+        pageSlots = new int[0];
+        allocatedBytes = 0;
+        closeBacking();
+    }
+}
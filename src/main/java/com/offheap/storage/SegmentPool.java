@@ -0,0 +1,112 @@
+package com.offheap.storage;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps segments released by closed or shrunk {@link DirectMemoryStorage}s for reuse by the next
+ * allocation of the same size, so that short-lived collections skip the native allocator. Pooled
+ * segments are zeroed before they are handed out again.
+ * <p>
+ * Pooling is off until a cap is set: {@link #global()}, which storages use unless given another
+ * pool, starts with a cap of 0. Pooled bytes count against no {@link MemoryBudget}, only the cap.
+ */
+public final class SegmentPool {
+    private static final SegmentPool GLOBAL = new SegmentPool(0);
+
+    record Pooled(Arena arena, MemorySegment segment) {
+    }
+
+    private final Map<Long, ArrayDeque<Pooled>> bySize = new HashMap<>();
+    private long maxPooledBytes;
+    private long pooledBytes;
+
+    public SegmentPool(long maxPooledBytes) {
+        this.maxPooledBytes = maxPooledBytes;
+    }
+
+    public static SegmentPool global() {
+        return GLOBAL;
+    }
+
+    /**
+     * Sets how many bytes the pool may hold, freeing pooled segments beyond it.
+     */
+    public synchronized void setMaxPooledBytes(long maxPooledBytes) {
+        this.maxPooledBytes = maxPooledBytes;
+        var sizes = bySize.values().iterator();
+        while (pooledBytes > maxPooledBytes && sizes.hasNext()) {
+            ArrayDeque<Pooled> pooled = sizes.next();
+            while (pooledBytes > maxPooledBytes && !pooled.isEmpty()) {
+                Pooled entry = pooled.poll();
+                pooledBytes -= entry.segment().byteSize();
+                entry.arena().close();
+            }
+            if (pooled.isEmpty()) {
+                sizes.remove();
+            }
+        }
+    }
+
+    public synchronized long getMaxPooledBytes() {
+        return maxPooledBytes;
+    }
+
+    public synchronized long getPooledBytes() {
+        return pooledBytes;
+    }
+
+    /**
+     * Frees every pooled segment.
+     */
+    public void clear() {
+        long cap = getMaxPooledBytes();
+        setMaxPooledBytes(0);
+        setMaxPooledBytes(cap);
+    }
+
+    /**
+     * A zeroed pooled segment of exactly {@code bytes} aligned to {@code alignment}, or null.
+     */
+    Pooled take(long bytes, long alignment) {
+        Pooled found = null;
+        synchronized (this) {
+            ArrayDeque<Pooled> pooled = bySize.get(bytes);
+            if (pooled == null) {
+                return null;
+            }
+            for (Pooled entry : pooled) {
+                if (entry.segment().address() % alignment == 0) {
+                    found = entry;
+                    break;
+                }
+            }
+            if (found == null) {
+                return null;
+            }
+            pooled.remove(found);
+            if (pooled.isEmpty()) {
+                bySize.remove(bytes);
+            }
+            pooledBytes -= bytes;
+        }
+        found.segment().fill((byte) 0);
+        return found;
+    }
+
+    /**
+     * Pools the segment if it fits under the cap and returns true; otherwise the caller frees it.
+     */
+    synchronized boolean offer(Arena arena, MemorySegment segment) {
+        long bytes = segment.byteSize();
+        if (bytes == 0 || pooledBytes + bytes > maxPooledBytes) {
+            return false;
+        }
+        bySize.computeIfAbsent(bytes, size -> new ArrayDeque<>()).push(new Pooled(arena, segment));
+        pooledBytes += bytes;
+        return true;
+    }
+}
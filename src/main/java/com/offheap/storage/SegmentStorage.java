@@ -0,0 +1,455 @@
+package com.offheap.storage;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Long-addressed accessors shared by the MemorySegment backed storages.
+ * <p>
+ * The address space is a table of chunks: the top bits of an offset select the chunk and
+ * {@code offset & chunkMask} is the position inside it. A contiguous storage is a single chunk
+ * with a shift wide enough that every offset lands in chunk 0. Values that straddle two chunks
+ * take a slow byte-wise path.
+ * <p>
+ * {@link MemoryAdvice} set with {@link #setAdvice} is applied to every chunk, including the ones
+ * added later by growth, so the hints can be chosen per collection to match its access pattern.
+ * <p>
+ * With a {@link WarmupMode} set, new chunks are faulted in as they are added, so that latency
+ * right after startup or growth is the same as later on.
+ * <p>
+ * Every byte allocated or mapped is reserved against a {@link MemoryBudget} first, the global one
+ * unless {@link #setBudget} picks another.
+ */
+abstract class SegmentStorage implements OffHeapStorage {
+    /** Shift used when the storage is one contiguous segment. */
+    static final int CONTIGUOUS_SHIFT = 62;
+
+    protected final int chunkShift;
+    protected final long chunkMask;
+    protected MemorySegment[] chunks = new MemorySegment[0];
+    /** Bytes a background warm-up faults in between checks that the chunk is still in use. */
+    private static final long WARMUP_SLICE = 4L << 20;
+
+    private Set<MemoryAdvice> advice = EnumSet.noneOf(MemoryAdvice.class);
+    private volatile WarmupMode warmup = WarmupMode.NONE;
+    private MemoryBudget budget = MemoryBudget.global();
+    private String budgetName = getClass().getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(this));
+    private String owner;
+
+    protected SegmentStorage(int chunkShift) {
+        this.chunkShift = chunkShift;
+        this.chunkMask = (1L << chunkShift) - 1;
+    }
+
+    protected static int shiftFor(long chunkSize) {
+        if (chunkSize <= 0 || Long.bitCount(chunkSize) != 1) {
+            throw new IllegalArgumentException("Chunk size must be a positive power of two: " + chunkSize);
+        }
+        return Long.numberOfTrailingZeros(chunkSize);
+    }
+
+    /**
+     * Accounts this storage against {@code budget} under {@code name}, e.g. the collection it backs.
+     * Must be called before the storage allocates.
+     */
+    public void setBudget(MemoryBudget budget, String name) {
+        if (getMemoryUsage() > 0) {
+            throw new IllegalStateException("Budget must be set before the storage allocates");
+        }
+        this.budget = budget;
+        this.budgetName = name;
+    }
+
+    public MemoryBudget getBudget() {
+        return budget;
+    }
+
+    /**
+     * Name this storage is accounted under, e.g. in {@link NativeMemoryTracker}.
+     */
+    public String getBudgetName() {
+        return budgetName;
+    }
+
+    @Override
+    public void setOwner(String owner) {
+        this.owner = owner;
+    }
+
+    @Override
+    public String getOwner() {
+        return owner;
+    }
+
+    protected void reserve(long bytes) {
+        budget.reserve(budgetName, bytes);
+    }
+
+    protected void release(long bytes) {
+        budget.release(budgetName, bytes);
+    }
+
+    protected void addChunk(MemorySegment chunk) {
+        chunks = Arrays.copyOf(chunks, chunks.length + 1);
+        chunks[chunks.length - 1] = chunk;
+        for (MemoryAdvice hint : advice) {
+            NativeMemory.madvise(chunk, 0, chunk.byteSize(), hint);
+        }
+        switch (warmup) {
+            case NONE -> {
+            }
+            case SYNCHRONOUS -> NativeMemory.prefault(chunk, 0, chunk.byteSize(), false);
+            case BACKGROUND -> {
+                if (isConfined()) {
+                    NativeMemory.prefault(chunk, 0, chunk.byteSize(), false);
+                } else {
+                    BackgroundWarmer.EXECUTOR.execute(() -> warmInBackground(chunk));
+                }
+            }
+        }
+    }
+
+    /**
+     * Faults {@code chunk} in slice by slice while it is still part of this storage. The storage
+     * monitor is held per slice, so a storage that closes or remaps under it waits for one slice
+     * at most.
+     */
+    private void warmInBackground(MemorySegment chunk) {
+        try {
+            for (long offset = 0; offset < chunk.byteSize(); offset += WARMUP_SLICE) {
+                synchronized (this) {
+                    if (!Arrays.asList(chunks).contains(chunk)) {
+                        return;
+                    }
+                    NativeMemory.prefault(chunk, offset, Math.min(WARMUP_SLICE, chunk.byteSize() - offset), true);
+                }
+            }
+        } catch (RuntimeException e) {
+            // Freed under us by a storage that does not synchronize its close
+        }
+    }
+
+    /**
+     * True if the chunks can only be used by the thread that allocated them.
+     */
+    protected boolean isConfined() {
+        return false;
+    }
+
+    /**
+     * Alignment for newly allocated chunks: huge-page aligned when {@link MemoryAdvice#HUGEPAGE}
+     * is requested, so the kernel can back them with huge pages, and cache-line aligned otherwise,
+     * so that offsets aligned by an {@link OffHeapAllocator} are aligned in memory too.
+     */
+    protected long chunkAlignment() {
+        return advice.contains(MemoryAdvice.HUGEPAGE) ? NativeMemory.HUGE_PAGE_SIZE : OffHeapAllocator.CACHE_LINE_SIZE;
+    }
+
+    /**
+     * Sets the hints applied to all current and future chunks. {@link MemoryAdvice#DONTNEED} drops
+     * data and is only accepted by {@link #adviseRange}.
+     */
+    public void setAdvice(MemoryAdvice... hints) {
+        Set<MemoryAdvice> newAdvice = EnumSet.noneOf(MemoryAdvice.class);
+        newAdvice.addAll(Arrays.asList(hints));
+        if (newAdvice.contains(MemoryAdvice.DONTNEED)) {
+            throw new IllegalArgumentException("DONTNEED discards data, use adviseRange() instead");
+        }
+        advice = newAdvice;
+        for (MemorySegment chunk : chunks) {
+            for (MemoryAdvice hint : advice) {
+                NativeMemory.madvise(chunk, 0, chunk.byteSize(), hint);
+            }
+        }
+    }
+
+    public Set<MemoryAdvice> getAdvice() {
+        return EnumSet.copyOf(advice);
+    }
+
+    /**
+     * Sets whether chunks added from now on, by allocation, growth or mapping, are faulted in up
+     * front. Ranges that are already there can be warmed with {@link #warmUp}.
+     */
+    public void setWarmup(WarmupMode warmup) {
+        this.warmup = warmup;
+    }
+
+    public WarmupMode getWarmup() {
+        return warmup;
+    }
+
+    /**
+     * Faults the pages of {@code [offset, offset + length)} in now without changing their
+     * contents, e.g. after opening a mapped file and before serving requests from it.
+     */
+    public void warmUp(long offset, long length) {
+        long done = 0;
+        while (done < length) {
+            long position = offset + done;
+            MemorySegment chunk = chunkAt(position);
+            long local = position & chunkMask;
+            long n = Math.min(length - done, chunk.byteSize() - local);
+            checkProgress(n, position);
+            NativeMemory.prefault(chunk, local, n, true);
+            done += n;
+        }
+    }
+
+    /**
+     * Applies a one-off hint to the whole pages inside {@code [offset, offset + length)}, e.g.
+     * WILLNEED before a scan or DONTNEED for a range that no longer holds data. Returns false if
+     * the platform did not take the hint for some part of the range.
+     */
+    public boolean adviseRange(long offset, long length, MemoryAdvice hint) {
+        boolean applied = true;
+        long done = 0;
+        while (done < length) {
+            long position = offset + done;
+            MemorySegment chunk = chunkAt(position);
+            long local = position & chunkMask;
+            long n = Math.min(length - done, chunk.byteSize() - local);
+            checkProgress(n, position);
+            applied &= NativeMemory.madvise(chunk, local, n, hint);
+            done += n;
+        }
+        return applied;
+    }
+
+    private MemorySegment chunkAt(long offset) {
+        return chunks[(int) (offset >>> chunkShift)];
+    }
+
+    @Override
+    public ByteBuffer asByteBuffer() {
+        if (chunks.length != 1) {
+            throw new UnsupportedOperationException("asByteBuffer() requires a single contiguous segment");
+        }
+        return chunks[0].asByteBuffer();
+    }
+
+    @Override
+    public int getInt(long offset) {
+        MemorySegment chunk = chunkAt(offset);
+        long local = offset & chunkMask;
+        if (local + Integer.BYTES <= chunk.byteSize()) {
+            return chunk.get(ValueLayout.JAVA_INT_UNALIGNED, local);
+        }
+        byte[] bytes = new byte[Integer.BYTES];
+        getBytes(offset, bytes);
+        return MemorySegment.ofArray(bytes).get(ValueLayout.JAVA_INT_UNALIGNED, 0);
+    }
+
+    @Override
+    public void putInt(long offset, int value) {
+        MemorySegment chunk = chunkAt(offset);
+        long local = offset & chunkMask;
+        if (local + Integer.BYTES <= chunk.byteSize()) {
+            chunk.set(ValueLayout.JAVA_INT_UNALIGNED, local, value);
+            return;
+        }
+        byte[] bytes = new byte[Integer.BYTES];
+        MemorySegment.ofArray(bytes).set(ValueLayout.JAVA_INT_UNALIGNED, 0, value);
+        putBytes(offset, bytes);
+    }
+
+    @Override
+    public long getLong(long offset) {
+        MemorySegment chunk = chunkAt(offset);
+        long local = offset & chunkMask;
+        if (local + Long.BYTES <= chunk.byteSize()) {
+            return chunk.get(ValueLayout.JAVA_LONG_UNALIGNED, local);
+        }
+        byte[] bytes = new byte[Long.BYTES];
+        getBytes(offset, bytes);
+        return MemorySegment.ofArray(bytes).get(ValueLayout.JAVA_LONG_UNALIGNED, 0);
+    }
+
+    @Override
+    public void putLong(long offset, long value) {
+        MemorySegment chunk = chunkAt(offset);
+        long local = offset & chunkMask;
+        if (local + Long.BYTES <= chunk.byteSize()) {
+            chunk.set(ValueLayout.JAVA_LONG_UNALIGNED, local, value);
+            return;
+        }
+        byte[] bytes = new byte[Long.BYTES];
+        MemorySegment.ofArray(bytes).set(ValueLayout.JAVA_LONG_UNALIGNED, 0, value);
+        putBytes(offset, bytes);
+    }
+
+    @Override
+    public void getBytes(long offset, byte[] dst) {
+        getBytes(offset, dst, 0, dst.length);
+    }
+
+    @Override
+    public void putBytes(long offset, byte[] src) {
+        putBytes(offset, src, 0, src.length);
+    }
+
+    @Override
+    public boolean bytesEqual(long offset, byte[] expected) {
+        MemorySegment heap = MemorySegment.ofArray(expected);
+        int done = 0;
+        while (done < expected.length) {
+            long position = offset + done;
+            MemorySegment chunk = chunkAt(position);
+            long local = position & chunkMask;
+            int n = (int) Math.min(expected.length - done, chunk.byteSize() - local);
+            checkProgress(n, position);
+            if (MemorySegment.mismatch(chunk, local, local + n, heap, done, done + n) != -1) {
+                return false;
+            }
+            done += n;
+        }
+        return true;
+    }
+
+    /**
+     * Reads {@code length} bytes into {@code dst} starting at {@code index}.
+     */
+    void getBytes(long offset, byte[] dst, int index, int length) {
+        int done = 0;
+        while (done < length) {
+            long position = offset + done;
+            MemorySegment chunk = chunkAt(position);
+            long local = position & chunkMask;
+            int n = (int) Math.min(length - done, chunk.byteSize() - local);
+            checkProgress(n, position);
+            MemorySegment.copy(chunk, ValueLayout.JAVA_BYTE, local, dst, index + done, n);
+            done += n;
+        }
+    }
+
+    /**
+     * Writes {@code length} bytes of {@code src} starting at {@code index}.
+     */
+    void putBytes(long offset, byte[] src, int index, int length) {
+        int done = 0;
+        while (done < length) {
+            long position = offset + done;
+            MemorySegment chunk = chunkAt(position);
+            long local = position & chunkMask;
+            int n = (int) Math.min(length - done, chunk.byteSize() - local);
+            checkProgress(n, position);
+            MemorySegment.copy(src, index + done, chunk, ValueLayout.JAVA_BYTE, local, n);
+            done += n;
+        }
+        written(offset, length);
+    }
+
+    /**
+     * Copies {@code length} bytes from this storage into {@code target}, segment to segment.
+     */
+    void copyTo(long offset, SegmentStorage target, long targetOffset, long length) {
+        long done = 0;
+        while (done < length) {
+            long src = offset + done;
+            long dst = targetOffset + done;
+            MemorySegment srcChunk = chunkAt(src);
+            MemorySegment dstChunk = target.chunkAt(dst);
+            long srcLocal = src & chunkMask;
+            long dstLocal = dst & target.chunkMask;
+            long n = Math.min(length - done,
+                    Math.min(srcChunk.byteSize() - srcLocal, dstChunk.byteSize() - dstLocal));
+            checkProgress(n, Math.max(src, dst));
+            MemorySegment.copy(srcChunk, srcLocal, dstChunk, dstLocal, n);
+            done += n;
+        }
+        target.written(targetOffset, length);
+    }
+
+    /**
+     * Called after bytes were written through {@link #putBytes(long, byte[], int, int)} or
+     * {@link #copyTo}. Storages that track dirty ranges override it.
+     */
+    void written(long offset, long length) {
+    }
+
+    @Override
+    public void copy(long srcOffset, long dstOffset, long length) {
+        if (dstOffset <= srcOffset) {
+            // Front to back: every piece reads ahead of what has already been written
+            long done = 0;
+            while (done < length) {
+                long src = srcOffset + done;
+                long dst = dstOffset + done;
+                MemorySegment srcChunk = chunkAt(src);
+                MemorySegment dstChunk = chunkAt(dst);
+                long srcLocal = src & chunkMask;
+                long dstLocal = dst & chunkMask;
+                long n = Math.min(length - done,
+                        Math.min(srcChunk.byteSize() - srcLocal, dstChunk.byteSize() - dstLocal));
+                checkProgress(n, Math.max(src, dst));
+                MemorySegment.copy(srcChunk, srcLocal, dstChunk, dstLocal, n);
+                done += n;
+            }
+        } else {
+            // Back to front so the tail is moved before it is overwritten
+            long remaining = length;
+            while (remaining > 0) {
+                long srcLast = srcOffset + remaining - 1;
+                long dstLast = dstOffset + remaining - 1;
+                MemorySegment srcChunk = chunkAt(srcLast);
+                MemorySegment dstChunk = chunkAt(dstLast);
+                long srcEnd = (srcLast & chunkMask) + 1;
+                long dstEnd = (dstLast & chunkMask) + 1;
+                long n = Math.min(remaining, Math.min(srcEnd, dstEnd));
+                MemorySegment.copy(srcChunk, srcEnd - n, dstChunk, dstEnd - n, n);
+                remaining -= n;
+            }
+        }
+    }
+
+    @Override
+    public void writeTo(FileChannel target, long offset, long length) throws IOException {
+        long done = 0;
+        while (done < length) {
+            ByteBuffer view = bufferAt(offset + done, length - done);
+            while (view.hasRemaining()) {
+                target.write(view);
+            }
+            done += view.capacity();
+        }
+    }
+
+    @Override
+    public void readFrom(FileChannel source, long offset, long length) throws IOException {
+        long done = 0;
+        while (done < length) {
+            ByteBuffer view = bufferAt(offset + done, length - done);
+            while (view.hasRemaining()) {
+                if (source.read(view) < 0) {
+                    throw new EOFException("Source ended " + (length - done - view.position()) + " bytes early");
+                }
+            }
+            done += view.capacity();
+        }
+    }
+
+    /**
+     * Direct buffer over the memory at {@code position}, up to {@code length} bytes but never
+     * crossing a chunk or exceeding a buffer's 2 GB limit.
+     */
+    private ByteBuffer bufferAt(long position, long length) {
+        MemorySegment chunk = chunkAt(position);
+        long local = position & chunkMask;
+        long n = Math.min(Math.min(length, chunk.byteSize() - local), Integer.MAX_VALUE);
+        checkProgress(n, position);
+        return chunk.asSlice(local, n).asByteBuffer();
+    }
+
+    private static void checkProgress(long n, long position) {
+        if (n <= 0) {
+            throw new IndexOutOfBoundsException("Offset " + position + " is outside the storage");
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.offheap.storage;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Storage whose full contents live in a {@link MemoryMappedStorage} cold tier, with the recently
+ * and frequently used pages cached in direct memory. Capacity is bounded by the file while hits
+ * are served at RAM latency.
+ * <p>
+ * Pages are promoted by copying them in from the mapping and written back only if they were
+ * modified; see {@link PageCacheStorage} for how pages are chosen for demotion.
+ * <p>
+ * Tiering is page-granular, not per entry: the storage does not know where a collection's entries
+ * begin and end, so every entry on a page moves with it, and a rarely used entry that shares a
+ * page with a hot one stays hot too. Smaller pages track hotness more closely at the cost of more
+ * promotions.
+ */
+public class TieredStorage extends PageCacheStorage {
+    public static final long DEFAULT_PAGE_SIZE = 64 * 1024;
+
+    private final MemoryMappedStorage cold;
+
+    /**
+     * Creates a storage backed by the file at {@code coldPath} that keeps up to {@code hotBytes}
+     * of it in direct memory. The mapped cold tier gets its own unlimited budget, so only the
+     * hot tier counts against the global one.
+     */
+    public TieredStorage(Path coldPath, long hotBytes) {
+        this(new MemoryMappedStorage(coldPath), DEFAULT_PAGE_SIZE, (int) Math.max(1, hotBytes / DEFAULT_PAGE_SIZE));
+        cold.setBudget(new MemoryBudget(Long.MAX_VALUE), "TieredStorage cold tier " + coldPath);
+    }
+
+    /**
+     * Creates a storage over {@code cold} that caches up to {@code maxHotPages} pages of
+     * {@code pageSize} bytes (a power of two) in direct memory.
+     */
+    public TieredStorage(MemoryMappedStorage cold, long pageSize, int maxHotPages) {
+        super(pageSize, maxHotPages);
+        this.cold = cold;
+    }
+
+    public MemoryMappedStorage getColdTier() {
+        return cold;
+    }
+
+    @Override
+    protected void allocateBacking(long bytes) {
+        cold.allocate(bytes);
+    }
+
+    @Override
+    protected void resizeBacking(long newBytes) {
+        cold.resize(newBytes);
+    }
+
+    @Override
+    protected void loadPage(int page, long hotOffset, long length) {
+        cold.copyTo((long) page << pageShift, hot, hotOffset, length);
+    }
+
+    @Override
+    protected void storePage(int page, long hotOffset, long length) {
+        hot.copyTo(hotOffset, cold, (long) page << pageShift, length);
+    }
+
+    /**
+     * Writes modified hot pages back to the cold tier and flushes it under its durability policy.
+     * The pages stay hot.
+     */
+    public synchronized void flush() {
+        writeBackAll();
+        cold.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (getMemoryUsage() > 0) {
+            writeBackAll();
+        }
+        super.close();
+    }
+
+    @Override
+    protected void closeBacking() throws IOException {
+        cold.close();
+    }
+}
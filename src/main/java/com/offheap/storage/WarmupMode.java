@@ -0,0 +1,17 @@
+package com.offheap.storage;
+
+/**
+ * Whether a storage faults in the pages it allocates or maps up front, so that the first writes
+ * after startup or growth do not pay for page faults.
+ */
+public enum WarmupMode {
+    /** Pages are faulted in by their first access. */
+    NONE,
+    /** Pages are faulted in before the allocation or resize returns. */
+    SYNCHRONOUS,
+    /**
+     * Pages are faulted in on a shared background thread. Accesses that get there first fault as
+     * usual. Chunks confined to one thread are warmed synchronously instead.
+     */
+    BACKGROUND
+}
@@ -0,0 +1,268 @@
+package com.offheap.storage;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of put and remove records, written sequentially through an in-memory buffer.
+ * Records are forced to disk in batches: after {@code syncEveryRecords} appends, in the background
+ * every {@code syncIntervalMillis}, and on {@link #sync()} or {@link #close()}. A crash loses at
+ * most the records of the current batch.
+ * <p>
+ * Record layout: type byte, key length int, key, value length int (-1 for a remove), value, and a
+ * CRC32 of everything before it. A torn or corrupt tail is cut off by {@link #replay}.
+ */
+public class WriteAheadLog implements AutoCloseable {
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Path path;
+    private final int syncEveryRecords;
+    private final ScheduledFuture<?> syncTask;
+    private FileChannel channel;
+    private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private final CRC32 crc = new CRC32();
+    private int unsyncedRecords;
+
+    /**
+     * Opens or creates the log at {@code path}. A {@code syncIntervalMillis} of 0 disables the
+     * background sync.
+     */
+    public WriteAheadLog(Path path, int syncEveryRecords, long syncIntervalMillis) {
+        if (syncEveryRecords <= 0 || syncIntervalMillis < 0) {
+            throw new IllegalArgumentException("Batch size must be positive and interval non-negative");
+        }
+        this.path = path;
+        this.syncEveryRecords = syncEveryRecords;
+        try {
+            openChannel();
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot open write-ahead log " + path, e);
+        }
+        syncTask = syncIntervalMillis == 0 ? null : BackgroundFlusher.SCHEDULER.scheduleWithFixedDelay(
+                this::backgroundSync, syncIntervalMillis, syncIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void openChannel() throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        channel.position(channel.size());
+    }
+
+    public void appendPut(byte[] key, byte[] value) {
+        append(PUT, key, value);
+    }
+
+    public void appendRemove(byte[] key) {
+        append(REMOVE, key, null);
+    }
+
+    private synchronized void append(byte type, byte[] key, byte[] value) {
+        int recordSize = 1 + 4 + key.length + 4 + (value == null ? 0 : value.length) + 4;
+        try {
+            if (recordSize > buffer.remaining()) {
+                drain();
+                if (recordSize > buffer.capacity()) {
+                    buffer = ByteBuffer.allocate(recordSize);
+                }
+            }
+            int start = buffer.position();
+            buffer.put(type).putInt(key.length).put(key).putInt(value == null ? -1 : value.length);
+            if (value != null) {
+                buffer.put(value);
+            }
+            crc.reset();
+            crc.update(buffer.array(), start, buffer.position() - start);
+            buffer.putInt((int) crc.getValue());
+            if (++unsyncedRecords >= syncEveryRecords) {
+                drain();
+                channel.force(false);
+                unsyncedRecords = 0;
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Write-ahead log append failed", e);
+        }
+    }
+
+    private void drain() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        if (buffer.capacity() > BUFFER_SIZE) {
+            buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        } else {
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Forces every appended record to disk.
+     */
+    public synchronized void sync() {
+        try {
+            drain();
+            channel.force(false);
+            unsyncedRecords = 0;
+        } catch (IOException e) {
+            throw new RuntimeException("Write-ahead log sync failed", e);
+        }
+    }
+
+    private synchronized void backgroundSync() {
+        if (unsyncedRecords == 0 || !channel.isOpen()) {
+            return;
+        }
+        try {
+            sync();
+        } catch (RuntimeException e) {
+            // The next append, sync or close() retries
+        }
+    }
+
+    /**
+     * Feeds every intact record to {@code consumer} in log order, with a {@code null} value for a
+     * remove. The log is truncated after the last intact record so that new appends follow it.
+     */
+    public synchronized void replay(BiConsumer<byte[], byte[]> consumer) {
+        try {
+            drain();
+            long valid = 0;
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+                byte[] record;
+                while ((record = readRecord(in)) != null) {
+                    ByteBuffer view = ByteBuffer.wrap(record);
+                    byte type = view.get();
+                    byte[] key = new byte[view.getInt()];
+                    view.get(key);
+                    int valueLength = view.getInt();
+                    byte[] value = null;
+                    if (type == PUT) {
+                        value = new byte[valueLength];
+                        view.get(value);
+                    }
+                    consumer.accept(key, value);
+                    valid += record.length + 4;
+                }
+            }
+            if (valid < channel.size()) {
+                channel.truncate(valid);
+            }
+            channel.position(valid);
+        } catch (IOException e) {
+            throw new RuntimeException("Write-ahead log replay failed", e);
+        }
+    }
+
+    /**
+     * Reads one record without its checksum, or returns null at the end of the log or at a torn
+     * or corrupt record.
+     */
+    private byte[] readRecord(DataInputStream in) throws IOException {
+        try {
+            byte type = in.readByte();
+            int keyLength = in.readInt();
+            if ((type != PUT && type != REMOVE) || keyLength < 0) {
+                return null;
+            }
+            byte[] key = in.readNBytes(keyLength);
+            int valueLength = in.readInt();
+            if (key.length != keyLength || (type == PUT ? valueLength < 0 : valueLength != -1)) {
+                return null;
+            }
+            byte[] value = type == PUT ? in.readNBytes(valueLength) : new byte[0];
+            if (type == PUT && value.length != valueLength) {
+                return null;
+            }
+            ByteBuffer record = ByteBuffer.allocate(1 + 4 + keyLength + 4 + value.length);
+            record.put(type).putInt(keyLength).put(key).putInt(valueLength).put(value);
+            crc.reset();
+            crc.update(record.array());
+            return in.readInt() == (int) crc.getValue() ? record.array() : null;
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Empties the log. Call once the state it describes is durable elsewhere.
+     */
+    public synchronized void truncate() {
+        try {
+            buffer.clear();
+            unsyncedRecords = 0;
+            channel.truncate(0);
+            channel.force(true);
+        } catch (IOException e) {
+            throw new RuntimeException("Write-ahead log truncation failed", e);
+        }
+    }
+
+    /**
+     * Replaces the log with the put records passed to the sink by {@code liveEntries}. The new log
+     * is written and forced beside the old one and then moved over it, so a crash leaves either
+     * the old or the new log intact.
+     */
+    public synchronized void rewrite(Consumer<BiConsumer<byte[], byte[]>> liveEntries) {
+        Path checkpoint = path.resolveSibling(path.getFileName() + ".checkpoint");
+        try {
+            drain();
+            FileChannel old = channel;
+            channel = FileChannel.open(checkpoint, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            try {
+                liveEntries.accept((key, value) -> append(PUT, key, value));
+                drain();
+                channel.force(true);
+            } finally {
+                channel.close();
+                channel = old;
+            }
+            Files.move(checkpoint, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            old.close();
+            openChannel();
+            unsyncedRecords = 0;
+        } catch (IOException e) {
+            throw new RuntimeException("Write-ahead log checkpoint failed", e);
+        }
+    }
+
+    /**
+     * Bytes in the log, including records not yet written out.
+     */
+    public synchronized long size() {
+        try {
+            return channel.size() + buffer.position();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (syncTask != null) {
+            syncTask.cancel(false);
+        }
+        if (channel.isOpen()) {
+            sync();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+}
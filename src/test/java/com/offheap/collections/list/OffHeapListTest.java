@@ -1,11 +1,15 @@
 package com.offheap.collections.list;
 
+import com.offheap.collections.SizingHints;
+import com.offheap.serialization.JavaSerializer;
 import com.offheap.serialization.KryoSerializer;
 import com.offheap.storage.DirectMemoryStorage;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
+import java.nio.file.Path;
 import java.util.List;
 import java.util.stream.Collectors;
 
@@ -33,6 +37,26 @@ class OffHeapListTest {
         assertEquals("A", list.get(0));
     }
 
+    @Test
+    void testSnapshotRestore(@TempDir Path dir) {
+        for (int i = 0; i < 200; i++) {
+            list.add("Item-" + i);
+        }
+        list.remove(17);
+        Path file = dir.resolve("list.snapshot");
+        list.snapshotTo(file);
+
+        try (OffHeapList<String> restored = new OffHeapList<>(new DirectMemoryStorage(1024),
+                new KryoSerializer<String>(), 4, false)) {
+            restored.restoreFrom(file);
+            assertEquals(199, restored.size());
+            assertEquals("Item-18", restored.get(17));
+            assertEquals("Item-199", restored.get(198));
+            restored.add("Item-200");
+            assertEquals("Item-200", restored.get(199));
+        }
+    }
+
     @Test
     void testInsertAndRemove() {
         list.add("A");
@@ -51,6 +75,23 @@ class OffHeapListTest {
         assertEquals(List.of("HELLO", "WORLD"), upper);
     }
 
+    @Test
+    void testSizingHintsReserveSampledSize() {
+        JavaSerializer<String> serializer = new JavaSerializer<>();
+        SizingHints hints = SizingHints.sample(10_000, serializer, List.of("element-00000", "element-99999"))
+                .withGrowthFactor(1.5);
+        try (OffHeapList<String> hinted = new OffHeapList<>(new DirectMemoryStorage(), serializer, hints, false)) {
+            long reserved = hinted.getMemoryUsage();
+            assertEquals(10_000 * serializer.estimatedSize("element-00000"), reserved);
+            for (int i = 0; i < 10_000; i++) {
+                hinted.add(String.format("element-%05d", i));
+            }
+            assertEquals(reserved, hinted.getMemoryUsage());
+            hinted.add("one more");
+            assertEquals((long) (reserved * 1.5), hinted.getMemoryUsage());
+        }
+    }
+
     @Test
     void testNegativeIndex() {
         assertThrows(IndexOutOfBoundsException.class, () -> list.get(-1));
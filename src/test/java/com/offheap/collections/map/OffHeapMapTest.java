@@ -1,13 +1,22 @@
 package com.offheap.collections.map;
 
+import com.offheap.collections.SizingHints;
 import com.offheap.serialization.JavaSerializer;
 import com.offheap.serialization.KryoSerializer;
+import com.offheap.serialization.Serializer;
 import com.offheap.storage.DirectMemoryStorage;
+import com.offheap.storage.MemoryMappedStorage;
+import com.offheap.storage.WriteAheadLog;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -62,6 +71,745 @@ class OffHeapMapTest {
         kryoMap.close();
     }
 
+    @Test
+    void testUnsynchronizedMapCanBeHandedToAnotherThread() throws Exception {
+        OffHeapMap<String, Integer> handedOff = new OffHeapMap<>(
+                new DirectMemoryStorage(), new JavaSerializer<>(), new JavaSerializer<>(), 4, false);
+        for (int i = 0; i < 100; i++) {
+            handedOff.put("Key-" + i, i);
+        }
+        Throwable[] failure = new Throwable[1];
+        Thread other = new Thread(() -> {
+            try {
+                assertEquals(42, handedOff.get("Key-42"));
+                handedOff.put("Key-100", 100);
+                handedOff.close();
+            } catch (Throwable t) {
+                failure[0] = t;
+            }
+        });
+        other.start();
+        other.join();
+        assertNull(failure[0]);
+    }
+
+    @Test
+    void testSegmentedStorageGrowth() {
+        OffHeapMap<String, Integer> segmentedMap = new OffHeapMap<>(
+                new DirectMemoryStorage(4096), new JavaSerializer<>(), new JavaSerializer<>(), 4, false);
+        for (int i = 0; i < 500; i++) {
+            segmentedMap.put("Key-" + i, i);
+        }
+        for (int i = 0; i < 500; i++) {
+            assertEquals(i, segmentedMap.get("Key-" + i));
+        }
+        segmentedMap.close();
+    }
+
+    @Test
+    void testSizingHintsAvoidGrowth() {
+        OffHeapMap<Integer, String> hinted = new OffHeapMap<>(new DirectMemoryStorage(), new JavaSerializer<>(),
+                new JavaSerializer<>(), SizingHints.of(1000, 81, 17), false);
+        long reserved = hinted.getMemoryUsage();
+        // Far below the 1 KB per entry reserved without hints
+        assertTrue(reserved < 200 * 1000);
+        for (int i = 0; i < 1000; i++) {
+            hinted.put(i, "value-" + (1000 + i));
+        }
+        assertEquals(reserved, hinted.getMemoryUsage());
+        assertEquals("value-1999", hinted.get(999));
+        hinted.close();
+    }
+
+    @Test
+    void testChurnReusesFreedSpace() {
+        OffHeapMap<String, String> churnMap = new OffHeapMap<>(
+                new DirectMemoryStorage(), new JavaSerializer<>(), new JavaSerializer<>(), 64, false);
+        for (int i = 0; i < 20; i++) {
+            churnMap.put("Key-" + i, "v".repeat(i));
+        }
+        long settled = 0;
+        for (int round = 0; round < 200; round++) {
+            for (int i = 0; i < 20; i++) {
+                churnMap.remove("Key-" + i);
+                churnMap.put("Key-" + i, "v".repeat((i + round) % 40));
+            }
+            if (round == 10) {
+                settled = churnMap.getMemoryUsage();
+            }
+        }
+        assertEquals(settled, churnMap.getMemoryUsage());
+        assertEquals("v".repeat((5 + 199) % 40), churnMap.get("Key-5"));
+        churnMap.close();
+    }
+
+    /** Key whose hash collides with every other key of the same group. */
+    private record CollidingKey(int group, int id) implements java.io.Serializable {
+        @Override
+        public int hashCode() {
+            return group;
+        }
+    }
+
+    @Test
+    void testCollidingKeysSurviveRemovalAndGrowth() {
+        OffHeapMap<CollidingKey, Integer> collisions = new OffHeapMap<>(
+                new DirectMemoryStorage(), new JavaSerializer<>(), new JavaSerializer<>(), 8, false);
+        for (int i = 0; i < 300; i++) {
+            collisions.put(new CollidingKey(i % 3, i), i);
+        }
+        // Removing from the middle of long probe runs shifts later slots back
+        for (int i = 0; i < 300; i += 2) {
+            assertEquals(i, collisions.remove(new CollidingKey(i % 3, i)));
+        }
+        assertEquals(150, collisions.size());
+        for (int i = 0; i < 300; i++) {
+            assertEquals(i % 2 == 0 ? null : i, collisions.get(new CollidingKey(i % 3, i)));
+        }
+        assertEquals(150, collisions.entrySet().stream().count());
+        collisions.close();
+    }
+
+    @Test
+    void testIncrementalRehashKeepsEntriesReachable() {
+        OffHeapMap<Integer, String> growing = new OffHeapMap<>(
+                new DirectMemoryStorage(), new JavaSerializer<>(), new JavaSerializer<>(), 8, false);
+        for (int i = 0; i < 3000; i++) {
+            growing.put(i, "value-" + i);
+            // Every entry is found whether or not its slot has moved to the new index yet
+            assertEquals("value-" + (i / 2), growing.get(i / 2));
+            if (i % 3 == 0) {
+                assertEquals("value-" + (i / 3), growing.remove(i / 3));
+                growing.put(i / 3, "value-" + (i / 3));
+            }
+        }
+        assertEquals(3000, growing.size());
+        assertEquals(3000, growing.entrySet().stream().count());
+        for (int i = 0; i < 3000; i++) {
+            assertEquals("value-" + i, growing.get(i));
+        }
+        growing.close();
+    }
+
+    @Test
+    void testPersistentReopenDuringRehash(@TempDir Path dir) {
+        Path file = dir.resolve("rehash.data");
+        try (OffHeapMap<Integer, Integer> persistentMap = new OffHeapMap<>(new MemoryMappedStorage(file),
+                new JavaSerializer<>(), new JavaSerializer<>(), 64, false, true)) {
+            // The 49th put starts doubling the 64-slot index, the next one moves only a few slots
+            for (int i = 0; i < 50; i++) {
+                persistentMap.put(i, i);
+            }
+        }
+
+        try (OffHeapMap<Integer, Integer> reopened = new OffHeapMap<>(new MemoryMappedStorage(file),
+                new JavaSerializer<>(), new JavaSerializer<>(), false)) {
+            for (int i = 0; i < 50; i++) {
+                assertEquals(i, reopened.get(i));
+            }
+            for (int i = 50; i < 500; i++) {
+                reopened.put(i, i);
+            }
+            assertEquals(500, reopened.size());
+            assertEquals(499, reopened.get(499));
+            assertEquals(7, reopened.get(7));
+        }
+    }
+
+    @Test
+    void testPersistentReopenAfterSeveralResizes(@TempDir Path dir) {
+        Path file = dir.resolve("resizes.data");
+        MemoryMappedStorage storage = new MemoryMappedStorage(file);
+        try (OffHeapMap<Integer, String> persistentMap = new OffHeapMap<>(storage,
+                new JavaSerializer<>(), new JavaSerializer<>(), 4, false, true)) {
+            for (int i = 0; i < 5000; i++) {
+                persistentMap.put(i, "value-" + i);
+            }
+            for (int i = 0; i < 5000; i += 7) {
+                persistentMap.remove(i);
+            }
+        }
+
+        try (OffHeapMap<Integer, String> reopened = new OffHeapMap<>(new MemoryMappedStorage(file),
+                new JavaSerializer<>(), new JavaSerializer<>(), false)) {
+            assertEquals(5000 - 715, reopened.size());
+            for (int i = 0; i < 5000; i++) {
+                assertEquals(i % 7 == 0 ? null : "value-" + i, reopened.get(i));
+            }
+            assertEquals(5000 - 715, reopened.keySet().stream().count());
+        }
+    }
+
+    @Test
+    void testPersistentReopenMidDrainAfterSeveralResizes(@TempDir Path dir) {
+        Path file = dir.resolve("drain.data");
+        try (OffHeapMap<Integer, Integer> persistentMap = new OffHeapMap<>(new MemoryMappedStorage(file),
+                new JavaSerializer<>(), new JavaSerializer<>(), 64, false, true)) {
+            // The 769th put starts doubling the 1024-slot index, the next ones move a few slots each
+            for (int i = 0; i < 800; i++) {
+                persistentMap.put(i, i);
+            }
+            assertEquals(1024, persistentMap.drainingCapacity());
+        }
+
+        try (OffHeapMap<Integer, Integer> reopened = new OffHeapMap<>(new MemoryMappedStorage(file),
+                new JavaSerializer<>(), new JavaSerializer<>(), false)) {
+            assertEquals(800, reopened.size());
+            for (int i = 0; i < 800; i++) {
+                assertEquals(i, reopened.get(i));
+            }
+            for (int i = 800; i < 4000; i++) {
+                reopened.put(i, i);
+            }
+            for (int i = 0; i < 4000; i++) {
+                assertEquals(i, reopened.get(i));
+            }
+            assertEquals(4000, reopened.entrySet().stream().count());
+        }
+    }
+
+    @Test
+    void testByteWiseKeyComparison() {
+        // Stored keys must never be decoded: lookups compare their bytes
+        Serializer<String> keys = new Serializer<>() {
+            private final KryoSerializer<String> delegate = new KryoSerializer<>();
+
+            @Override
+            public byte[] serialize(String obj) {
+                return delegate.serialize(obj);
+            }
+
+            @Override
+            public String deserialize(byte[] data) {
+                throw new AssertionError("key deserialized");
+            }
+
+            @Override
+            public long estimatedSize(String obj) {
+                return delegate.estimatedSize(obj);
+            }
+        };
+        OffHeapMap<String, Integer> bytesMap = new OffHeapMap<>(
+                new DirectMemoryStorage(), keys, new KryoSerializer<>(), 8, false);
+        bytesMap.setKeyComparison(KeyComparison.BYTES);
+        for (int i = 0; i < 500; i++) {
+            bytesMap.put("Key-" + i, i);
+        }
+        bytesMap.put("Key-7", 70);
+        assertEquals(500, bytesMap.size());
+        assertEquals(70, bytesMap.get("Key-7"));
+        assertEquals(499, bytesMap.get("Key-499"));
+        assertNull(bytesMap.get("Key-500"));
+        assertEquals(42, bytesMap.remove("Key-42"));
+        assertNull(bytesMap.get("Key-42"));
+        assertEquals(499, bytesMap.size());
+
+        // Same hashCode, so each lookup has to compare against the other stored key
+        bytesMap.put("Aa", 1);
+        bytesMap.put("BB", 2);
+        bytesMap.put("AaBB", 3);
+        bytesMap.put("BBAa", 4);
+        assertEquals(1, bytesMap.get("Aa"));
+        assertEquals(2, bytesMap.get("BB"));
+        assertEquals(3, bytesMap.get("AaBB"));
+        assertEquals(4, bytesMap.get("BBAa"));
+        assertNull(bytesMap.get("AaAa"));
+        assertFalse(bytesMap.containsKey("BBBB"));
+        bytesMap.put("BB", 20);
+        assertEquals(20, bytesMap.get("BB"));
+        assertEquals(1, bytesMap.remove("Aa"));
+        assertEquals(20, bytesMap.get("BB"));
+        assertEquals(502, bytesMap.size());
+        bytesMap.close();
+    }
+
+    @Test
+    void testCompactReclaimsSparseTail() {
+        OffHeapMap<Integer, String> sparseMap = new OffHeapMap<>(
+                new DirectMemoryStorage(), new JavaSerializer<>(), new JavaSerializer<>(), 16, false);
+        for (int i = 0; i < 1000; i++) {
+            sparseMap.put(i, "value-" + i);
+        }
+        for (int i = 0; i < 1000; i++) {
+            if (i % 10 != 0) {
+                sparseMap.remove(i);
+            }
+        }
+        long before = sparseMap.getMemoryUsage();
+        sparseMap.compact();
+        assertTrue(sparseMap.getMemoryUsage() < before);
+        assertEquals(100, sparseMap.size());
+        for (int i = 0; i < 1000; i += 10) {
+            assertEquals("value-" + i, sparseMap.get(i));
+        }
+        sparseMap.put(5000, "after");
+        assertEquals("after", sparseMap.get(5000));
+        sparseMap.close();
+    }
+
+    @Test
+    void testAutoCompactionInSteps() {
+        OffHeapMap<Integer, String> autoMap = new OffHeapMap<>(
+                new DirectMemoryStorage(), new JavaSerializer<>(), new JavaSerializer<>(), 2048, false);
+        autoMap.setAutoCompaction(0.5, 0);
+        for (int i = 0; i < 1000; i++) {
+            autoMap.put(i, "value-" + i);
+        }
+        for (int i = 999; i >= 0; i--) {
+            if (i % 10 != 0) {
+                autoMap.remove(i);
+            }
+        }
+        for (int i = 0; i < 3000; i++) {
+            autoMap.put(-1, "churn");
+            autoMap.remove(-1);
+        }
+        assertEquals(100, autoMap.size());
+        for (int i = 0; i < 1000; i += 10) {
+            assertEquals("value-" + i, autoMap.get(i));
+        }
+        autoMap.close();
+    }
+
+    @Test
+    void testPersistentMapReopen(@TempDir Path dir) {
+        Path file = dir.resolve("map.data");
+        try (OffHeapMap<String, Integer> persistentMap = new OffHeapMap<>(new MemoryMappedStorage(file),
+                new JavaSerializer<>(), new JavaSerializer<>(), 4, false, true)) {
+            for (int i = 0; i < 100; i++) {
+                persistentMap.put("Key-" + i, i);
+            }
+            persistentMap.remove("Key-7");
+        }
+
+        try (OffHeapMap<String, Integer> reopened = new OffHeapMap<>(new MemoryMappedStorage(file),
+                new JavaSerializer<>(), new JavaSerializer<>(), false)) {
+            assertEquals(99, reopened.size());
+            assertEquals(42, reopened.get("Key-42"));
+            assertNull(reopened.get("Key-7"));
+            reopened.put("Key-100", 100);
+            assertEquals(100, reopened.get("Key-100"));
+            // Closing twice, here and by try-with-resources, is harmless
+            reopened.close();
+        }
+    }
+
+    @Test
+    void testPersistentReopenKeepsFreeBytes(@TempDir Path dir) {
+        Path file = dir.resolve("free.data");
+        long freed;
+        try (OffHeapMap<Integer, Integer> persistentMap = new OffHeapMap<>(new MemoryMappedStorage(file),
+                new JavaSerializer<>(), new JavaSerializer<>(), 256, false, true)) {
+            for (int i = 0; i < 100; i++) {
+                persistentMap.put(i, i);
+            }
+            for (int i = 0; i < 100; i += 10) {
+                persistentMap.remove(i);
+            }
+            // Ten blocks of one size class
+            freed = persistentMap.freeBytes();
+            assertTrue(freed > 0);
+        }
+
+        try (OffHeapMap<Integer, Integer> reopened = new OffHeapMap<>(new MemoryMappedStorage(file),
+                new JavaSerializer<>(), new JavaSerializer<>(), false)) {
+            assertEquals(freed, reopened.freeBytes());
+            reopened.remove(1);
+            reopened.put(1000, 1000);
+            reopened.put(1001, 1001);
+            assertEquals(freed - freed / 10, reopened.freeBytes());
+            assertEquals(91, reopened.size());
+        }
+    }
+
+    @Test
+    void testPersistentBlocksStartAligned(@TempDir Path dir) {
+        Path file = dir.resolve("blocks.data");
+        try (OffHeapMap<Integer, String> persistentMap = new OffHeapMap<>(new MemoryMappedStorage(file),
+                new JavaSerializer<>(), new JavaSerializer<>(), 16, false, true)) {
+            for (int i = 0; i < 10; i++) {
+                persistentMap.put(i, "v".repeat(i));
+            }
+            // The index is the first block after the header
+            assertEquals(0, persistentMap.indexOffset() % 64);
+            long[] offsets = persistentMap.entryOffsets();
+            assertEquals(10, offsets.length);
+            for (long offset : offsets) {
+                assertEquals(0, offset % 16);
+            }
+        }
+    }
+
+    @Test
+    void testCacheLineAlignedEntries(@TempDir Path dir) {
+        Path file = dir.resolve("aligned.data");
+        try (OffHeapMap<Integer, String> aligned = new OffHeapMap<>(new MemoryMappedStorage(file),
+                new JavaSerializer<>(), new JavaSerializer<>(), 16, false, true)) {
+            aligned.setCacheLineAligned(true);
+            for (int i = 0; i < 500; i++) {
+                aligned.put(i, "v".repeat(i % 50));
+            }
+            for (int i = 0; i < 500; i += 2) {
+                aligned.remove(i);
+            }
+            aligned.compact();
+            assertThrows(IllegalStateException.class, () -> aligned.setCacheLineAligned(false));
+        }
+
+        try (OffHeapMap<Integer, String> reopened = new OffHeapMap<>(new MemoryMappedStorage(file),
+                new JavaSerializer<>(), new JavaSerializer<>(), false)) {
+            assertTrue(reopened.isCacheLineAligned());
+            assertEquals(250, reopened.size());
+            assertEquals("v".repeat(49), reopened.get(499));
+            reopened.put(1000, "new");
+            long[] offsets = reopened.entryOffsets();
+            assertEquals(251, offsets.length);
+            for (long offset : offsets) {
+                assertEquals(0, offset % 64);
+            }
+        }
+    }
+
+    @Test
+    void testReopenRejectsForeignFile(@TempDir Path dir) throws Exception {
+        Path file = dir.resolve("empty.data");
+        Files.write(file, new byte[64]);
+        assertThrows(IllegalStateException.class, () -> new OffHeapMap<String, Integer>(
+                new MemoryMappedStorage(file), new JavaSerializer<>(), new JavaSerializer<>(), false));
+    }
+
+    @Test
+    void testSharedReaderFollowsWriter(@TempDir Path dir) throws Exception {
+        Path file = dir.resolve("shared.data");
+        MemoryMappedStorage writerStorage = new MemoryMappedStorage(file, 4096);
+        writerStorage.setShared(true);
+        try (OffHeapMap<Integer, String> writer = new OffHeapMap<>(writerStorage,
+                new JavaSerializer<>(), new JavaSerializer<>(), 4, true, true);
+             OffHeapMap<Integer, String> reader = OffHeapMap.openReader(new MemoryMappedStorage(file, 4096),
+                     new JavaSerializer<>(), new JavaSerializer<>())) {
+            Thread writes = new Thread(() -> {
+                for (int i = 0; i < 2000; i++) {
+                    writer.put(i, "value-" + i);
+                }
+            });
+            writes.start();
+            // Values seen mid-resize must still be complete and match their key
+            while (writes.isAlive()) {
+                for (int i = 0; i < 2000; i += 97) {
+                    String value = reader.get(i);
+                    assertTrue(value == null || value.equals("value-" + i), value);
+                }
+            }
+            writes.join();
+            assertEquals(2000, reader.size());
+            assertEquals("value-1999", reader.get(1999));
+            assertEquals(2000, reader.entrySet().stream().count());
+            assertThrows(UnsupportedOperationException.class, () -> reader.put(1, "x"));
+        }
+    }
+
+    @Test
+    void testWriteAheadLogRecovery(@TempDir Path dir) throws Exception {
+        Path logFile = dir.resolve("map.wal");
+        OffHeapMap<String, Integer> crashed = new OffHeapMap<>(new DirectMemoryStorage(),
+                new JavaSerializer<>(), new JavaSerializer<>(), 4, false);
+        WriteAheadLog log = new WriteAheadLog(logFile, 1000, 0);
+        crashed.attachWriteAheadLog(log, 0);
+        for (int i = 0; i < 50; i++) {
+            crashed.put("Key-" + i, i);
+        }
+        crashed.remove("Key-3");
+        crashed.put("Key-4", 400);
+        log.sync();
+        // Simulate a crash: the log ends in a torn record and the map is never closed
+        log.close();
+        Files.write(logFile, new byte[]{1, 0, 0, 0, 9, 'K'}, StandardOpenOption.APPEND);
+
+        try (OffHeapMap<String, Integer> recovered = new OffHeapMap<>(new DirectMemoryStorage(),
+                new JavaSerializer<>(), new JavaSerializer<>(), 4, false)) {
+            recovered.attachWriteAheadLog(new WriteAheadLog(logFile, 1000, 0), 0);
+            assertEquals(49, recovered.size());
+            assertNull(recovered.get("Key-3"));
+            assertEquals(400, recovered.get("Key-4"));
+            recovered.put("Key-50", 50);
+        }
+        crashed.close();
+
+        try (OffHeapMap<String, Integer> again = new OffHeapMap<>(new DirectMemoryStorage(),
+                new JavaSerializer<>(), new JavaSerializer<>(), 4, false)) {
+            again.attachWriteAheadLog(new WriteAheadLog(logFile, 1000, 0), 0);
+            assertEquals(50, again.size());
+            assertEquals(50, again.get("Key-50"));
+        }
+    }
+
+    @Test
+    void testWriteAheadLogCheckpoint(@TempDir Path dir) throws Exception {
+        Path logFile = dir.resolve("map.wal");
+        try (OffHeapMap<String, Integer> logged = new OffHeapMap<>(new DirectMemoryStorage(),
+                new JavaSerializer<>(), new JavaSerializer<>(), 4, false)) {
+            logged.attachWriteAheadLog(new WriteAheadLog(logFile, 100, 0), 16 * 1024);
+            for (int round = 0; round < 20; round++) {
+                for (int i = 0; i < 20; i++) {
+                    logged.put("Key-" + i, round);
+                }
+            }
+        }
+        // 400 puts of roughly 100 bytes each, rewritten down to the 20 live entries
+        assertTrue(Files.size(logFile) < 16 * 1024);
+
+        try (OffHeapMap<String, Integer> recovered = new OffHeapMap<>(new DirectMemoryStorage(),
+                new JavaSerializer<>(), new JavaSerializer<>(), 4, false)) {
+            recovered.attachWriteAheadLog(new WriteAheadLog(logFile, 100, 0), 0);
+            assertEquals(20, recovered.size());
+            assertEquals(19, recovered.get("Key-7"));
+        }
+    }
+
+    @Test
+    void testWriteAheadLogCheckpointWithLiveDataAboveThreshold(@TempDir Path dir) throws Exception {
+        Path logFile = dir.resolve("map.wal");
+        int[] rewrites = new int[1];
+        WriteAheadLog log = new WriteAheadLog(logFile, 100, 0) {
+            @Override
+            public synchronized void rewrite(java.util.function.Consumer<java.util.function.BiConsumer<byte[], byte[]>> liveEntries) {
+                rewrites[0]++;
+                super.rewrite(liveEntries);
+            }
+        };
+        try (OffHeapMap<String, Integer> logged = new OffHeapMap<>(new DirectMemoryStorage(),
+                new JavaSerializer<>(), new JavaSerializer<>(), 4, false)) {
+            logged.attachWriteAheadLog(log, 16 * 1024);
+            // Roughly 200 KB of live entries, far above the threshold
+            for (int i = 0; i < 2000; i++) {
+                logged.put("Key-" + i, i);
+            }
+        }
+        // The log is rewritten each time it doubles, not on every put once live data passes 16 KB
+        assertTrue(rewrites[0] > 0 && rewrites[0] < 20, "rewrites: " + rewrites[0]);
+
+        try (OffHeapMap<String, Integer> recovered = new OffHeapMap<>(new DirectMemoryStorage(),
+                new JavaSerializer<>(), new JavaSerializer<>(), 4, false)) {
+            recovered.attachWriteAheadLog(new WriteAheadLog(logFile, 100, 0), 0);
+            assertEquals(2000, recovered.size());
+            assertEquals(1999, recovered.get("Key-1999"));
+        }
+    }
+
+    @Test
+    void testSnapshotRestore(@TempDir Path dir) {
+        for (int i = 0; i < 300; i++) {
+            map.put("Key-" + i, i);
+        }
+        for (int i = 0; i < 300; i += 3) {
+            map.remove("Key-" + i);
+        }
+        Path file = dir.resolve("map.snapshot");
+        map.snapshotTo(file);
+
+        try (OffHeapMap<String, Integer> restored = new OffHeapMap<>(new DirectMemoryStorage(4096),
+                new JavaSerializer<>(), new JavaSerializer<>(), 4, false)) {
+            restored.put("Stale", -1);
+            restored.restoreFrom(file);
+            assertEquals(200, restored.size());
+            assertNull(restored.get("Stale"));
+            assertNull(restored.get("Key-3"));
+            assertEquals(4, restored.get("Key-4"));
+            long usage = restored.getMemoryUsage();
+            // Freed blocks came along with the free lists and are reused
+            for (int i = 0; i < 300; i += 3) {
+                restored.put("Key-" + i, i);
+            }
+            assertEquals(300, restored.size());
+            assertEquals(usage, restored.getMemoryUsage());
+        }
+    }
+
+    @Test
+    void testPersistentSnapshotRestore(@TempDir Path dir) {
+        Path snapshot = dir.resolve("map.snapshot");
+        try (OffHeapMap<String, Integer> source = new OffHeapMap<>(new MemoryMappedStorage(dir.resolve("a.data")),
+                new JavaSerializer<>(), new JavaSerializer<>(), 4, false, true)) {
+            for (int i = 0; i < 100; i++) {
+                source.put("Key-" + i, i);
+            }
+            source.snapshotTo(snapshot);
+        }
+        try (OffHeapMap<String, Integer> target = new OffHeapMap<>(new MemoryMappedStorage(dir.resolve("b.data")),
+                new JavaSerializer<>(), new JavaSerializer<>(), 4, false, true)) {
+            target.restoreFrom(snapshot);
+            assertEquals(100, target.size());
+            assertEquals(42, target.get("Key-42"));
+        }
+        try (OffHeapMap<String, Integer> reopened = new OffHeapMap<>(new MemoryMappedStorage(dir.resolve("b.data")),
+                new JavaSerializer<>(), new JavaSerializer<>(), false)) {
+            assertEquals(100, reopened.size());
+        }
+        assertThrows(IllegalStateException.class, () -> map.restoreFrom(snapshot));
+    }
+
+    @Test
+    void testSharedReaderDuringRestore(@TempDir Path dir) throws Exception {
+        String[] prefixes = {"a-", "b-"};
+        for (String prefix : prefixes) {
+            try (OffHeapMap<Integer, String> source = new OffHeapMap<>(
+                    new MemoryMappedStorage(dir.resolve(prefix + "source.data")),
+                    new JavaSerializer<>(), new JavaSerializer<>(), 4, false, true)) {
+                for (int i = 0; i < 500; i++) {
+                    source.put(i, prefix + i);
+                }
+                source.snapshotTo(dir.resolve(prefix + "map.snapshot"));
+            }
+        }
+        Path file = dir.resolve("live.data");
+        MemoryMappedStorage writerStorage = new MemoryMappedStorage(file, 4096);
+        writerStorage.setShared(true);
+        try (OffHeapMap<Integer, String> writer = new OffHeapMap<>(writerStorage,
+                new JavaSerializer<>(), new JavaSerializer<>(), 4, true, true);
+             OffHeapMap<Integer, String> reader = OffHeapMap.openReader(new MemoryMappedStorage(file, 4096),
+                     new JavaSerializer<>(), new JavaSerializer<>())) {
+            writer.restoreFrom(dir.resolve("a-map.snapshot"));
+            Thread restores = new Thread(() -> {
+                for (int round = 1; round <= 20; round++) {
+                    writer.restoreFrom(dir.resolve(prefixes[round % 2] + "map.snapshot"));
+                }
+            });
+            restores.start();
+            // Every read sees one snapshot or the other, never a mix or a torn entry
+            while (restores.isAlive()) {
+                for (int i = 0; i < 500; i += 37) {
+                    String value = reader.get(i);
+                    assertTrue(("a-" + i).equals(value) || ("b-" + i).equals(value), value);
+                }
+            }
+            restores.join();
+            assertEquals(500, reader.size());
+            assertEquals("a-42", reader.get(42));
+            writer.put(500, "after");
+            assertEquals("after", reader.get(500));
+        }
+    }
+
+    @Test
+    void testSharedReaderGivesUpOnStalledWriter(@TempDir Path dir) throws Exception {
+        CountDownLatch stalled = new CountDownLatch(1);
+        CountDownLatch resume = new CountDownLatch(1);
+        Serializer<String> values = new Serializer<>() {
+            private final JavaSerializer<String> delegate = new JavaSerializer<>();
+
+            @Override
+            public byte[] serialize(String obj) {
+                if (obj.equals("stall")) {
+                    stalled.countDown();
+                    try {
+                        resume.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return delegate.serialize(obj);
+            }
+
+            @Override
+            public String deserialize(byte[] data) {
+                return delegate.deserialize(data);
+            }
+
+            @Override
+            public long estimatedSize(String obj) {
+                return delegate.estimatedSize(obj);
+            }
+        };
+        Path file = dir.resolve("stalled.data");
+        MemoryMappedStorage writerStorage = new MemoryMappedStorage(file, 4096);
+        writerStorage.setShared(true);
+        try (OffHeapMap<Integer, String> writer = new OffHeapMap<>(writerStorage,
+                new JavaSerializer<>(), values, 4, true, true);
+             OffHeapMap<Integer, String> reader = OffHeapMap.openReader(new MemoryMappedStorage(file, 4096),
+                     new JavaSerializer<>(), values)) {
+            writer.put(1, "one");
+            reader.setWriterTimeoutMillis(100);
+            // The put stays in progress, as if its writer had died mid-write
+            Thread writes = new Thread(() -> writer.put(2, "stall"));
+            writes.start();
+            stalled.await();
+            assertThrows(IllegalStateException.class, () -> reader.get(1));
+            resume.countDown();
+            writes.join();
+            assertEquals("one", reader.get(1));
+            assertEquals("stall", reader.get(2));
+        }
+    }
+
+    @Test
+    void testContainsAndViewsDecodeOnlyWhatTheyNeed() {
+        JavaSerializer<String> keys = new JavaSerializer<>();
+        Serializer<String> values = new Serializer<>() {
+            private final JavaSerializer<String> delegate = new JavaSerializer<>();
+
+            @Override
+            public byte[] serialize(String obj) {
+                return delegate.serialize(obj);
+            }
+
+            @Override
+            public String deserialize(byte[] data) {
+                throw new AssertionError("value deserialized");
+            }
+
+            @Override
+            public long estimatedSize(String obj) {
+                return delegate.estimatedSize(obj);
+            }
+        };
+        try (OffHeapMap<String, String> viewMap = new OffHeapMap<>(
+                new DirectMemoryStorage(), keys, values, 8, false)) {
+            for (int i = 0; i < 100; i++) {
+                viewMap.put("Key-" + i, "value-" + i);
+            }
+            assertTrue(viewMap.containsKey("Key-42"));
+            assertFalse(viewMap.containsKey("Key-100"));
+            assertFalse(viewMap.containsKey(null));
+            assertTrue(viewMap.keySet().contains("Key-0"));
+            assertEquals(100, viewMap.keySet().stream().filter(k -> k.startsWith("Key-")).count());
+            assertThrows(AssertionError.class, () -> viewMap.values().iterator().next());
+        }
+
+        map.put("A", 1);
+        map.put("B", 2);
+        assertTrue(map.containsValue(2));
+        assertFalse(map.containsValue(3));
+        assertTrue(map.values().contains(1));
+        assertTrue(map.entrySet().contains(new java.util.AbstractMap.SimpleEntry<>("B", 2)));
+        assertFalse(map.entrySet().contains(new java.util.AbstractMap.SimpleEntry<>("B", 1)));
+        assertTrue(map.keySet().remove("A"));
+        assertFalse(map.containsKey("A"));
+        assertEquals(1, map.size());
+    }
+
+    @Test
+    void testNullValuesInViews() {
+        map.put("A", 1);
+        map.put("B", null);
+        map.put("C", 3);
+        map.put("D", 4);
+        assertFalse(map.containsValue(2));
+        assertTrue(map.containsValue(null));
+        assertTrue(map.values().contains(null));
+        assertEquals(4, map.values().stream().count());
+        assertEquals(1, map.values().stream().filter(java.util.Objects::isNull).count());
+        assertEquals(4, map.keySet().stream().count());
+        assertTrue(map.entrySet().contains(new java.util.AbstractMap.SimpleEntry<>("B", null)));
+        assertFalse(map.entrySet().contains(new java.util.AbstractMap.SimpleEntry<>("E", null)));
+        assertTrue(map.keySet().remove("B"));
+        assertFalse(map.containsKey("B"));
+        assertFalse(map.keySet().remove("B"));
+        assertEquals(3, map.size());
+        map.put("B", null);
+        map.put("B", 2);
+        assertFalse(map.containsValue(null));
+    }
+
     @Test
     void testNegativeNullKey() {
         assertNull(map.get("NonExistent"));
@@ -0,0 +1,75 @@
+package com.offheap.storage;
+
+import com.offheap.collections.map.OffHeapMap;
+import com.offheap.serialization.JavaSerializer;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CompressedStorageTest {
+
+    @Test
+    void testDemotedPagesAreCompressed() throws Exception {
+        try (CompressedStorage storage = new CompressedStorage(4096, 2, 1)) {
+            storage.allocate(16 * 4096);
+            byte[] json = "{\"id\":12345,\"name\":\"alice\",\"tags\":[\"a\",\"b\"]}".getBytes(StandardCharsets.UTF_8);
+            for (long offset = 0; offset + json.length <= 16 * 4096; offset += json.length) {
+                storage.putBytes(offset, json);
+            }
+            assertTrue(storage.getCompressedBytes() > 0);
+            assertTrue(storage.getCompressedBytes() * 5 < 14 * 4096);
+            byte[] read = new byte[json.length];
+            for (long offset = 0; offset + json.length <= 16 * 4096; offset += 7 * json.length) {
+                storage.getBytes(offset, read);
+                assertArrayEquals(json, read);
+            }
+        }
+    }
+
+    @Test
+    void testIncompressiblePagesRoundTrip() throws Exception {
+        try (CompressedStorage storage = new CompressedStorage(4096, 1, 1)) {
+            storage.allocate(4 * 4096);
+            byte[] noise = new byte[4 * 4096];
+            new Random(42).nextBytes(noise);
+            storage.putBytes(0, noise);
+            byte[] read = new byte[noise.length];
+            storage.getBytes(0, read);
+            assertArrayEquals(noise, read);
+            // Every page was demoted dirty at least once and stored as is
+            assertEquals(4 * 4096, storage.getCompressedBytes());
+        }
+    }
+
+    @Test
+    void testResizeKeepsContentAndZeroesNewBytes() throws Exception {
+        try (CompressedStorage storage = new CompressedStorage(4096, 1, 1)) {
+            storage.allocate(4096 + 100);
+            storage.putLong(4096 + 50, 7L);
+            storage.putLong(0, 1L);
+            storage.resize(3 * 4096);
+            assertEquals(7L, storage.getLong(4096 + 50));
+            assertEquals(0L, storage.getLong(4096 + 200));
+            assertEquals(1L, storage.getLong(0));
+            storage.resize(4096);
+            assertEquals(1L, storage.getLong(0));
+            assertThrows(IndexOutOfBoundsException.class, () -> storage.getLong(4096));
+        }
+    }
+
+    @Test
+    void testMapOfCompressibleValues() {
+        CompressedStorage storage = new CompressedStorage(4096, 4, 6);
+        OffHeapMap<Integer, String> map = new OffHeapMap<>(storage, new JavaSerializer<>(), new JavaSerializer<>(), 64, false);
+        for (int i = 0; i < 2_000; i++) {
+            map.put(i, "{\"id\":" + i + ",\"status\":\"active\",\"region\":\"eu-west\"}");
+        }
+        for (int i = 0; i < 2_000; i++) {
+            assertEquals("{\"id\":" + i + ",\"status\":\"active\",\"region\":\"eu-west\"}", map.get(i));
+        }
+        map.close();
+    }
+}
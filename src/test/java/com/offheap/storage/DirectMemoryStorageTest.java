@@ -0,0 +1,194 @@
+package com.offheap.storage;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DirectMemoryStorageTest {
+    private DirectMemoryStorage storage;
+
+    @BeforeEach
+    void setUp() {
+        storage = new DirectMemoryStorage();
+        storage.allocate(64);
+    }
+
+    @AfterEach
+    void tearDown() {
+        storage.close();
+    }
+
+    @Test
+    void testTypedAccessors() {
+        storage.putInt(3, 42);
+        storage.putLong(7, Long.MAX_VALUE);
+        storage.putBytes(15, new byte[]{1, 2, 3});
+        assertEquals(42, storage.getInt(3));
+        assertEquals(Long.MAX_VALUE, storage.getLong(7));
+        byte[] data = new byte[3];
+        storage.getBytes(15, data);
+        assertArrayEquals(new byte[]{1, 2, 3}, data);
+    }
+
+    @Test
+    void testOverlappingCopy() {
+        storage.putBytes(0, new byte[]{1, 2, 3, 4});
+        storage.copy(0, 2, 4);
+        byte[] data = new byte[6];
+        storage.getBytes(0, data);
+        assertArrayEquals(new byte[]{1, 2, 1, 2, 3, 4}, data);
+    }
+
+    @Test
+    void testBytesEqualAcrossChunks() {
+        DirectMemoryStorage segmented = new DirectMemoryStorage(16);
+        segmented.allocate(32);
+        segmented.putBytes(12, new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+        assertTrue(segmented.bytesEqual(12, new byte[]{1, 2, 3, 4, 5, 6, 7, 8}));
+        assertFalse(segmented.bytesEqual(12, new byte[]{1, 2, 3, 4, 5, 6, 7, 9}));
+        assertFalse(segmented.bytesEqual(12, new byte[]{0, 2, 3, 4}));
+        segmented.close();
+    }
+
+    @Test
+    void testResizeKeepsContent() {
+        storage.putLong(56, 7L);
+        storage.resize(128);
+        assertEquals(7L, storage.getLong(56));
+        assertEquals(128, storage.getMemoryUsage());
+    }
+
+    @Test
+    void testSegmentedGrowthKeepsChunksInPlace() {
+        DirectMemoryStorage segmented = new DirectMemoryStorage(16);
+        segmented.allocate(20);
+        assertEquals(32, segmented.getMemoryUsage());
+        // Values straddling the chunk boundaries at 16 and 32
+        segmented.putLong(12, 0x0102030405060708L);
+        segmented.resize(segmented.nextCapacity(40));
+        assertEquals(48, segmented.getMemoryUsage());
+        segmented.putInt(30, 99);
+        assertEquals(0x0102030405060708L, segmented.getLong(12));
+        assertEquals(99, segmented.getInt(30));
+        segmented.close();
+    }
+
+    @Test
+    void testSegmentedCopyAcrossChunks() {
+        DirectMemoryStorage segmented = new DirectMemoryStorage(8);
+        segmented.allocate(32);
+        byte[] data = new byte[20];
+        for (int i = 0; i < data.length; i++) data[i] = (byte) i;
+        segmented.putBytes(2, data);
+        segmented.copy(2, 7, 20);
+        byte[] moved = new byte[20];
+        segmented.getBytes(7, moved);
+        assertArrayEquals(data, moved);
+        segmented.copy(7, 1, 20);
+        segmented.getBytes(1, moved);
+        assertArrayEquals(data, moved);
+        segmented.close();
+    }
+
+    @Test
+    @EnabledOnOs(OS.LINUX)
+    void testAdviceAndDontNeedRange() {
+        DirectMemoryStorage advised = new DirectMemoryStorage();
+        advised.setAdvice(MemoryAdvice.HUGEPAGE, MemoryAdvice.RANDOM, MemoryAdvice.POPULATE);
+        advised.allocate(4 * NativeMemory.PAGE_SIZE);
+        advised.putLong(NativeMemory.PAGE_SIZE, 42L);
+        assertTrue(advised.adviseRange(0, 4 * NativeMemory.PAGE_SIZE, MemoryAdvice.DONTNEED));
+        assertEquals(0L, advised.getLong(NativeMemory.PAGE_SIZE));
+        assertThrows(IllegalArgumentException.class, () -> advised.setAdvice(MemoryAdvice.DONTNEED));
+        advised.close();
+    }
+
+    @Test
+    void testReleasedChunksAreReusedZeroedFromPool() {
+        SegmentPool pool = new SegmentPool(2 * 4096);
+        DirectMemoryStorage first = new DirectMemoryStorage(4096);
+        first.setPool(pool);
+        first.allocate(3 * 4096);
+        first.putLong(4096, 42);
+        long address = first.chunks[1].address();
+        first.close();
+        // The third chunk did not fit under the cap and was freed
+        assertEquals(2 * 4096, pool.getPooledBytes());
+
+        DirectMemoryStorage second = new DirectMemoryStorage(4096);
+        second.setPool(pool);
+        second.allocate(4096);
+        assertEquals(4096, pool.getPooledBytes());
+        // The most recently released chunk comes back first, without the value written to it
+        assertEquals(address, second.chunks[0].address());
+        assertEquals(0L, second.getLong(0));
+        assertEquals(4096, second.getMemoryUsage());
+
+        pool.setMaxPooledBytes(0);
+        assertEquals(0, pool.getPooledBytes());
+        second.close();
+        assertEquals(0, pool.getPooledBytes());
+    }
+
+    @Test
+    void testConfinedStorageIsConfinedToItsThread() throws Exception {
+        DirectMemoryStorage confined = new DirectMemoryStorage();
+        confined.setArenaMode(ArenaMode.CONFINED);
+        confined.allocate(64);
+        assertEquals(ArenaMode.CONFINED, confined.getArenaMode());
+        confined.putLong(0, 7);
+
+        Throwable[] failure = new Throwable[1];
+        Thread other = new Thread(() -> {
+            try {
+                confined.getLong(0);
+            } catch (Throwable t) {
+                failure[0] = t;
+            }
+        });
+        other.start();
+        other.join();
+        assertInstanceOf(WrongThreadException.class, failure[0]);
+        assertEquals(7L, confined.getLong(0));
+        confined.close();
+
+        DirectMemoryStorage automatic = new DirectMemoryStorage();
+        automatic.setArenaMode(ArenaMode.AUTOMATIC);
+        automatic.allocate(64);
+        automatic.resize(128);
+        assertEquals(ArenaMode.AUTOMATIC, automatic.getArenaMode());
+        automatic.close();
+        assertEquals(0, automatic.getMemoryUsage());
+    }
+
+    @Test
+    void testWarmupKeepsContents() throws Exception {
+        DirectMemoryStorage warmed = new DirectMemoryStorage(1 << 20);
+        warmed.setWarmup(WarmupMode.BACKGROUND);
+        warmed.allocate(1 << 20);
+        for (int i = 0; i < 8; i++) {
+            warmed.resize((i + 2L) << 20);
+            // Written while the new chunk may still be warming
+            warmed.putLong(((i + 1L) << 20) + 8, i + 1);
+        }
+        BackgroundWarmer.EXECUTOR.submit(() -> { }).get();
+        for (int i = 0; i < 8; i++) {
+            assertEquals(i + 1, warmed.getLong(((i + 1L) << 20) + 8));
+        }
+        warmed.close();
+
+        // A confined storage cannot be touched by the warmer thread and warms in place
+        DirectMemoryStorage confined = new DirectMemoryStorage();
+        confined.setArenaMode(ArenaMode.CONFINED);
+        confined.setWarmup(WarmupMode.BACKGROUND);
+        confined.allocate(1 << 20);
+        confined.resize(2 << 20);
+        confined.warmUp(0, 2 << 20);
+        assertEquals(0L, confined.getLong((2 << 20) - 8));
+        confined.close();
+    }
+}
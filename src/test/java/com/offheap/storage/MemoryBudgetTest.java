@@ -0,0 +1,57 @@
+package com.offheap.storage;
+
+import com.offheap.collections.map.OffHeapMap;
+import com.offheap.serialization.JavaSerializer;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MemoryBudgetTest {
+
+    @Test
+    void testCapRefusesGrowthAndReportsUsage() {
+        MemoryBudget budget = new MemoryBudget(64 * 1024);
+        DirectMemoryStorage storage = new DirectMemoryStorage();
+        storage.setBudget(budget, "users");
+        OffHeapMap<Integer, String> map = new OffHeapMap<>(storage, new JavaSerializer<>(), new JavaSerializer<>(), 16, false);
+        assertEquals(16 * 1024L, budget.getUsageByName().get("users"));
+        assertThrows(MemoryBudgetExceededException.class, () -> {
+            for (int i = 0; i < 10_000; i++) {
+                map.put(i, "value-" + i);
+            }
+        });
+        assertTrue(budget.getUsedBytes() <= budget.getCap());
+        map.close();
+        assertEquals(0, budget.getUsedBytes());
+        assertTrue(budget.getUsageByName().isEmpty());
+    }
+
+    @Test
+    void testGrowthWaitsForRelease() throws Exception {
+        MemoryBudget budget = new MemoryBudget(1024, 5_000);
+        DirectMemoryStorage holder = new DirectMemoryStorage();
+        holder.setBudget(budget, "holder");
+        holder.allocate(1024);
+
+        CountDownLatch waiting = new CountDownLatch(1);
+        Thread releaser = new Thread(() -> {
+            try {
+                waiting.await();
+                Thread.sleep(50);
+            } catch (InterruptedException ignored) {
+            }
+            holder.close();
+        });
+        releaser.start();
+
+        DirectMemoryStorage waiter = new DirectMemoryStorage();
+        waiter.setBudget(budget, "waiter");
+        waiting.countDown();
+        waiter.allocate(512);
+        assertEquals(512, budget.getUsedBytes());
+        releaser.join();
+        waiter.close();
+    }
+}
@@ -0,0 +1,151 @@
+package com.offheap.storage;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.lang.foreign.MemorySegment;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MemoryMappedStorageTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void testGrowthMapsNewRegionsOnly() throws Exception {
+        Path file = dir.resolve("regions.data");
+        try (MemoryMappedStorage storage = new MemoryMappedStorage(file, 4096)) {
+            storage.allocate(4096);
+            MemorySegment first = storage.chunks[0];
+            storage.putLong(4000, 123L);
+            storage.resize(3 * 4096 + 100);
+            storage.putLong(4092, 456L);
+            assertSame(first, storage.chunks[0]);
+            assertEquals(4, storage.chunks.length);
+            assertEquals(123L, storage.getLong(4000));
+            assertEquals(456L, storage.getLong(4092));
+            assertEquals(3 * 4096 + 100, Files.size(file));
+        }
+    }
+
+    @Test
+    void testShrinkTruncatesFile() throws Exception {
+        Path file = dir.resolve("shrink.data");
+        try (MemoryMappedStorage storage = new MemoryMappedStorage(file, 4096)) {
+            storage.allocate(10_000);
+            storage.putInt(100, 7);
+            storage.resize(5000);
+            assertEquals(2, storage.chunks.length);
+            assertEquals(7, storage.getInt(100));
+            assertEquals(5000, Files.size(file));
+        }
+    }
+
+    @Test
+    void testFailedResizeKeepsMappingAndBudget() throws Exception {
+        Path file = dir.resolve("failed.data");
+        try (MemoryMappedStorage writer = new MemoryMappedStorage(file, 8192)) {
+            writer.allocate(4096);
+            writer.putLong(4000, 42L);
+        }
+        MemoryBudget budget = new MemoryBudget(Long.MAX_VALUE);
+        try (MemoryMappedStorage reader = new MemoryMappedStorage(file, 8192)) {
+            reader.setBudget(budget, "reader");
+            reader.openReadOnly();
+            // A read-only channel cannot extend the file, so remapping the tail region fails
+            assertThrows(RuntimeException.class, () -> reader.resize(3 * 4096));
+            assertEquals(4096, reader.getMemoryUsage());
+            assertEquals(4096, budget.getUsedBytes());
+            assertEquals(1, reader.chunks.length);
+            assertEquals(42L, reader.getLong(4000));
+            reader.refresh();
+            assertEquals(42L, reader.getLong(4000));
+        }
+        assertEquals(0, budget.getUsedBytes());
+    }
+
+    @Test
+    void testReadOnlyViewRefreshesAndSharedWriterNeverShrinks() throws Exception {
+        Path file = dir.resolve("shared.data");
+        try (MemoryMappedStorage writer = new MemoryMappedStorage(file, 4096);
+             MemoryMappedStorage reader = new MemoryMappedStorage(file, 4096)) {
+            writer.setShared(true);
+            writer.allocate(4096);
+            reader.openReadOnly();
+            writer.resize(3 * 4096);
+            writer.putLong(2 * 4096, 42L);
+            reader.refresh();
+            assertEquals(3 * 4096, reader.getMemoryUsage());
+            assertEquals(42L, reader.getLong(2 * 4096));
+            // Read-only segments reject writes (the exception type differs between JDK releases)
+            assertThrows(RuntimeException.class, () -> reader.putLong(0, 1L));
+            writer.resize(4096);
+            assertEquals(3 * 4096, Files.size(file));
+        }
+    }
+
+    @Test
+    void testGroupCommitFlushesAfterBatch() throws Exception {
+        try (MemoryMappedStorage storage = new MemoryMappedStorage(dir.resolve("group.data"), 4096)) {
+            storage.setDurability(DurabilityPolicy.groupCommit(3, 60_000));
+            storage.allocate(3 * 4096);
+            storage.flush();
+            // Raw accessor calls are not commits, however many there are
+            for (int i = 0; i < 10; i++) {
+                storage.putLong(8L * i, i);
+            }
+            storage.putLong(8192, 2L);
+            storage.commit();
+            storage.commit();
+            assertEquals(2, storage.dirtyPageCount());
+            storage.commit();
+            long deadline = System.currentTimeMillis() + 5_000;
+            while (storage.dirtyPageCount() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(0, storage.dirtyPageCount());
+        }
+    }
+
+    @Test
+    void testPeriodicFlushInBackground() throws Exception {
+        try (MemoryMappedStorage storage = new MemoryMappedStorage(dir.resolve("periodic.data"), 4096)) {
+            storage.allocate(4096);
+            storage.setDurability(DurabilityPolicy.periodic(10));
+            storage.putInt(100, 7);
+            long deadline = System.currentTimeMillis() + 5_000;
+            while (storage.dirtyPageCount() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(0, storage.dirtyPageCount());
+        }
+    }
+
+    @Test
+    void testWarmupLoadsMappedRegions() throws Exception {
+        Path file = dir.resolve("warm.data");
+        try (MemoryMappedStorage storage = new MemoryMappedStorage(file, 64 * 1024)) {
+            storage.setWarmup(WarmupMode.BACKGROUND);
+            storage.allocate(64 * 1024);
+            for (int i = 0; i < 16; i++) {
+                storage.resize((i + 2) * 64 * 1024L);
+                storage.putLong(i * 64 * 1024L + 8, i);
+            }
+            for (int i = 0; i < 16; i++) {
+                assertEquals(i, storage.getLong(i * 64 * 1024L + 8));
+            }
+        }
+        // The warmer stops at the first slice of a closed storage
+        BackgroundWarmer.EXECUTOR.submit(() -> { }).get();
+
+        try (MemoryMappedStorage reopened = new MemoryMappedStorage(file, 64 * 1024)) {
+            reopened.setWarmup(WarmupMode.SYNCHRONOUS);
+            reopened.open();
+            assertTrue(reopened.chunks[0].isLoaded());
+            reopened.warmUp(0, reopened.getMemoryUsage());
+            assertEquals(15L, reopened.getLong(15 * 64 * 1024L + 8));
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.offheap.storage;
+
+import com.offheap.collections.list.OffHeapList;
+import com.offheap.collections.set.OffHeapSet;
+import com.offheap.serialization.JavaSerializer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class NativeMemoryTrackerTest {
+
+    @BeforeEach
+    void setUp() {
+        NativeMemoryTracker.setEnabled(true);
+    }
+
+    @AfterEach
+    void tearDown() {
+        NativeMemoryTracker.setEnabled(false);
+    }
+
+    private static List<NativeMemoryTracker.Allocation> allocationsOf(String owner) {
+        return NativeMemoryTracker.getLiveAllocations().stream()
+                .filter(allocation -> allocation.owner().equals(owner))
+                .toList();
+    }
+
+    @Test
+    void testTracksArenasUntilClosed() {
+        DirectMemoryStorage storage = new DirectMemoryStorage(4096);
+        storage.setBudget(MemoryBudget.global(), "tracked-orders");
+        storage.allocate(3 * 4096);
+        storage.resize(2 * 4096);
+
+        List<NativeMemoryTracker.Allocation> allocations = allocationsOf("tracked-orders");
+        assertEquals(2, allocations.size());
+        assertEquals(2 * 4096L, NativeMemoryTracker.getLiveBytesByOwner().get("tracked-orders"));
+        assertEquals(getClass().getName(), allocations.get(0).site()[0].getClassName());
+        assertTrue(NativeMemoryTracker.getHighWaterBytes() >= 3 * 4096);
+
+        storage.close();
+        assertTrue(allocationsOf("tracked-orders").isEmpty());
+    }
+
+    @Test
+    void testReportsStorageCollectedWithoutClose() throws Exception {
+        DirectMemoryStorage storage = new DirectMemoryStorage();
+        storage.setBudget(new MemoryBudget(Long.MAX_VALUE), "tracked-leak");
+        storage.allocate(64);
+        storage = null;
+
+        // The 64 bytes stay allocated for the rest of the run, which is what a leak is
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (System.currentTimeMillis() < deadline
+                && NativeMemoryTracker.getLeaks().stream().noneMatch(leak -> leak.owner().equals("tracked-leak"))) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        List<NativeMemoryTracker.Allocation> leaks = allocationsOf("tracked-leak");
+        assertEquals(1, leaks.size());
+        assertTrue(leaks.get(0).leaked());
+    }
+
+    @Test
+    void testAutomaticArenasAreNotKeptAlive() throws Exception {
+        DirectMemoryStorage storage = new DirectMemoryStorage();
+        storage.setBudget(new MemoryBudget(Long.MAX_VALUE), "tracked-automatic");
+        storage.setArenaMode(ArenaMode.AUTOMATIC);
+        storage.allocate(64);
+        assertEquals(1, allocationsOf("tracked-automatic").size());
+        storage = null;
+
+        // Once the storage is unreachable the garbage collector frees the arena and the record
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (System.currentTimeMillis() < deadline && !allocationsOf("tracked-automatic").isEmpty()) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertTrue(allocationsOf("tracked-automatic").isEmpty());
+    }
+
+    @Test
+    void testReportsOwningCollection() {
+        try (OffHeapList<String> list = new OffHeapList<>(new DirectMemoryStorage(), new JavaSerializer<>(), 4, false)) {
+            String owner = "OffHeapList@" + Integer.toHexString(System.identityHashCode(list));
+            assertEquals(1, allocationsOf(owner).size());
+        }
+        try (OffHeapSet<String> set = new OffHeapSet<>(new DirectMemoryStorage(), new JavaSerializer<>(), 4, false)) {
+            String owner = "OffHeapSet@" + Integer.toHexString(System.identityHashCode(set));
+            assertEquals(1, allocationsOf(owner).size());
+            assertEquals(1, allocationsOf(owner + " index").size());
+        }
+    }
+
+    @Test
+    void testDisabledTrackingRecordsNothing() {
+        NativeMemoryTracker.setEnabled(false);
+        DirectMemoryStorage storage = new DirectMemoryStorage();
+        storage.setBudget(MemoryBudget.global(), "tracked-off");
+        storage.allocate(64);
+        assertTrue(allocationsOf("tracked-off").isEmpty());
+        storage.close();
+    }
+}
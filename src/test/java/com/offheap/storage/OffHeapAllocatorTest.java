@@ -0,0 +1,62 @@
+package com.offheap.storage;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OffHeapAllocatorTest {
+
+    @Test
+    void testSizeClassesCoverRequests() {
+        for (long size = 1; size < 100_000; size++) {
+            int sizeClass = OffHeapAllocator.sizeClass(size);
+            assertTrue(OffHeapAllocator.classSize(sizeClass) >= size);
+            if (sizeClass > 0) {
+                assertTrue(OffHeapAllocator.classSize(sizeClass - 1) < size);
+            }
+        }
+    }
+
+    @Test
+    void testFreedBlocksAreReused() {
+        DirectMemoryStorage storage = new DirectMemoryStorage();
+        storage.allocate(256);
+        OffHeapAllocator allocator = new OffHeapAllocator(storage, 0);
+        long a = allocator.allocate(40);
+        long b = allocator.allocate(40);
+        allocator.free(a, 40);
+        assertEquals(48, allocator.freeBytes());
+        assertEquals(a, allocator.allocate(33));
+        assertEquals(0, allocator.freeBytes());
+        assertNotEquals(b, allocator.allocate(40));
+        storage.close();
+    }
+
+    @Test
+    void testGrowsStorage() {
+        DirectMemoryStorage storage = new DirectMemoryStorage();
+        storage.allocate(64);
+        OffHeapAllocator allocator = new OffHeapAllocator(storage, 0);
+        long offset = allocator.allocate(1000);
+        assertTrue(storage.getMemoryUsage() >= offset + 1000);
+        storage.close();
+    }
+
+    @Test
+    void testCacheLineAlignment() {
+        DirectMemoryStorage storage = new DirectMemoryStorage();
+        storage.allocate(4096);
+        OffHeapAllocator allocator = new OffHeapAllocator(storage, 40);
+        allocator.setAlignment(OffHeapAllocator.CACHE_LINE_SIZE);
+        allocator.alignTop();
+        for (long size = 1; size < 3000; size += 37) {
+            long offset = allocator.allocate(size);
+            assertEquals(0, offset % 64);
+            assertEquals(0, allocator.reservedSize(size) % 64);
+            allocator.free(offset, size);
+            assertEquals(offset, allocator.allocate(size));
+        }
+        assertThrows(IllegalArgumentException.class, () -> allocator.setAlignment(24));
+        storage.close();
+    }
+}
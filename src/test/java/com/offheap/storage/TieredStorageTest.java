@@ -0,0 +1,82 @@
+package com.offheap.storage;
+
+import com.offheap.collections.map.OffHeapMap;
+import com.offheap.serialization.JavaSerializer;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TieredStorageTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void testColdPagesArePromotedAndDirtyPagesWrittenBack() throws Exception {
+        MemoryMappedStorage cold = new MemoryMappedStorage(dir.resolve("cold.data"), 4096);
+        try (TieredStorage storage = new TieredStorage(cold, 4096, 2)) {
+            storage.allocate(8 * 4096);
+            assertEquals(2 * 4096, storage.getHotBytes());
+            for (int page = 0; page < 8; page++) {
+                storage.putLong(page * 4096L + 100, page + 1);
+            }
+            assertFalse(storage.isHot(100));
+            // Written back on demotion, not left behind in the hot tier
+            assertEquals(1L, cold.getLong(100));
+            assertEquals(4L, cold.getLong(3 * 4096 + 100));
+            for (int page = 0; page < 8; page++) {
+                assertEquals(page + 1, storage.getLong(page * 4096L + 100));
+            }
+            assertTrue(storage.getPromotions() >= 14);
+        }
+    }
+
+    @Test
+    void testFrequentlyUsedPageStaysHot() throws Exception {
+        MemoryMappedStorage cold = new MemoryMappedStorage(dir.resolve("hot.data"), 4096);
+        try (TieredStorage storage = new TieredStorage(cold, 4096, 2)) {
+            storage.allocate(16 * 4096);
+            for (int page = 1; page < 16; page++) {
+                for (int hit = 0; hit < 3; hit++) {
+                    storage.getInt(0);
+                }
+                storage.getInt(page * 4096L);
+            }
+            assertTrue(storage.isHot(0));
+        }
+    }
+
+    @Test
+    void testValuesAndCopiesAcrossPages() throws Exception {
+        MemoryMappedStorage cold = new MemoryMappedStorage(dir.resolve("copy.data"), 4096);
+        try (TieredStorage storage = new TieredStorage(cold, 4096, 2)) {
+            storage.allocate(4 * 4096);
+            storage.putLong(4092, 0x0102030405060708L);
+            assertEquals(0x0102030405060708L, storage.getLong(4092));
+            byte[] data = new byte[6000];
+            for (int i = 0; i < data.length; i++) data[i] = (byte) i;
+            storage.putBytes(1000, data);
+            storage.copy(1000, 7000, data.length);
+            byte[] moved = new byte[data.length];
+            storage.getBytes(7000, moved);
+            assertArrayEquals(data, moved);
+            assertThrows(IndexOutOfBoundsException.class, () -> storage.getLong(4 * 4096 - 4));
+        }
+    }
+
+    @Test
+    void testMapLargerThanHotTier() {
+        TieredStorage storage = new TieredStorage(dir.resolve("map.data"), 256 * 1024);
+        OffHeapMap<Integer, String> map = new OffHeapMap<>(storage, new JavaSerializer<>(), new JavaSerializer<>(), 256, false);
+        for (int i = 0; i < 5_000; i++) {
+            map.put(i, "value-" + i);
+        }
+        for (int i = 0; i < 5_000; i++) {
+            assertEquals("value-" + i, map.get(i));
+        }
+        assertTrue(storage.getMemoryUsage() > storage.getHotBytes());
+        map.close();
+    }
+}